@@ -0,0 +1,30 @@
+package vq.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH suite and writes results as JSON to {@code jmh-result.json}
+ * unless {@code -rf}/{@code -rff} say otherwise. Accepts the usual JMH command
+ * line, e.g. {@code java -jar target/benchmarks.jar Encoding -p codeBookSize=1024}.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.result("jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
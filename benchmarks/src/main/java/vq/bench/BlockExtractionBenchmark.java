@@ -0,0 +1,43 @@
+package vq.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** {@code divideIntoBlocks}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockExtractionBenchmark {
+
+    @Param({"cameraman.bmp", "girlgray.bmp", "synthetic-1024", "synthetic-2048"})
+    public String image;
+
+    @Param({"2", "4", "8"})
+    public int blockSize;
+
+    private BufferedImage input;
+
+    @Setup
+    public void setUp() throws Exception {
+        input = Images.load(image);
+    }
+
+    @Benchmark
+    public Object divideIntoBlocks() throws Throwable {
+        return Pipeline.divideIntoBlocks(input, blockSize);
+    }
+}
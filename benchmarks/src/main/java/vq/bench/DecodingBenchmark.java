@@ -0,0 +1,117 @@
+package vq.bench;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code Decompress}, {@code reconstructImage}, the parallel {@code TiledDecoder},
+ * range decoding of the index stream, a {@code RegionDecoder} crop of a
+ * memory-mapped file and {@code Compute_MSE} on a pre-encoded image.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecodingBenchmark {
+
+    /** Side of the square crop decoded by {@link #regionDecode}, the size of a typical map tile. */
+    private static final int REGION_SIZE = 256;
+
+    @Param({"cameraman.bmp", "girlgray.bmp", "synthetic-1024", "synthetic-2048"})
+    public String image;
+
+    @Param({"2", "4", "8"})
+    public int blockSize;
+
+    @Param({"16", "256"})
+    public int codeBookSize;
+
+    private BufferedImage original;
+    private HashMap<String, double[]> codeBook;
+    private List<String> compressedBlocks;
+    private Object decompressedBlocks;
+    private BufferedImage reconstructed;
+    private Object compressedImage;
+    private Object tiledDecoder;
+    private int[] indices;
+    private int keyLength;
+    private byte[] rangeCoded;
+    private Path compressedFile;
+    private Object regionDecoder;
+
+    @Setup
+    public void setUp() throws Throwable {
+        original = Images.load(image);
+        Object blocks = Pipeline.divideIntoBlocks(original, blockSize);
+        codeBook = Pipeline.createSampledCodeBook(blocks, codeBookSize, 20_000, 20);
+        compressedBlocks = Pipeline.createCompressedImg(blocks, codeBook);
+        decompressedBlocks = Pipeline.decompress(compressedBlocks, codeBook, blockSize * blockSize);
+        reconstructed = Pipeline.reconstructImage(decompressedBlocks, original.getWidth(), original.getHeight(), blockSize);
+        compressedImage = Pipeline.compressedImage(original.getWidth(), original.getHeight(), blockSize, codeBook,
+                compressedBlocks);
+        tiledDecoder = Pipeline.tiledDecoder();
+        indices = Pipeline.indices(compressedImage);
+        keyLength = Pipeline.keyLength(compressedImage);
+        rangeCoded = Pipeline.rangeEncode(indices, keyLength, original.getWidth() / blockSize);
+        compressedFile = Files.createTempFile("region", ".vqc");
+        Pipeline.writeCompressedImage(compressedImage, compressedFile);
+        regionDecoder = Pipeline.regionDecoder(compressedFile);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(compressedFile);
+    }
+
+    @Benchmark
+    public Object decompress() throws Throwable {
+        return Pipeline.decompress(compressedBlocks, codeBook, blockSize * blockSize);
+    }
+
+    @Benchmark
+    public BufferedImage reconstructImage() throws Throwable {
+        return Pipeline.reconstructImage(decompressedBlocks, original.getWidth(), original.getHeight(), blockSize);
+    }
+
+    @Benchmark
+    public BufferedImage tiledDecode() throws Throwable {
+        return Pipeline.tiledDecode(tiledDecoder, compressedImage);
+    }
+
+    @Benchmark
+    public int[] rangeDecode() throws Throwable {
+        return Pipeline.rangeDecode(rangeCoded, indices.length, keyLength, original.getWidth() / blockSize);
+    }
+
+    /** Centred crop of at most {@link #REGION_SIZE} pixels a side, unaligned to the block grid. */
+    @Benchmark
+    public BufferedImage regionDecode() throws Throwable {
+        int width = Math.min(REGION_SIZE, original.getWidth() - 1);
+        int height = Math.min(REGION_SIZE, original.getHeight() - 1);
+        return Pipeline.decodeRegion(regionDecoder, (original.getWidth() - width) / 2 | 1,
+                (original.getHeight() - height) / 2 | 1, width, height);
+    }
+
+    @Benchmark
+    public double computeMse() throws Throwable {
+        return Pipeline.computeMse(original, reconstructed);
+    }
+}
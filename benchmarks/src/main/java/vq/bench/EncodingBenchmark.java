@@ -0,0 +1,59 @@
+package vq.bench;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code create_compressed_img} against a codebook trained once in setup, and
+ * greedy descent of a {@code TreeCodeBook} of the same size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+
+    @Param({"cameraman.bmp", "girlgray.bmp", "synthetic-1024", "synthetic-2048"})
+    public String image;
+
+    @Param({"2", "4", "8"})
+    public int blockSize;
+
+    @Param({"16", "64", "256", "1024"})
+    public int codeBookSize;
+
+    private Object blocks;
+    private HashMap<String, double[]> codeBook;
+    private Object tree;
+
+    @Setup
+    public void setUp() throws Throwable {
+        blocks = Pipeline.divideIntoBlocks(Images.load(image), blockSize);
+        codeBook = Pipeline.createSampledCodeBook(blocks, codeBookSize, 20_000, 20);
+        tree = Pipeline.createSampledTreeCodeBook(blocks, codeBookSize, 20_000, 20);
+    }
+
+    @Benchmark
+    public List<String> createCompressedImg() throws Throwable {
+        return Pipeline.createCompressedImg(blocks, codeBook);
+    }
+
+    @Benchmark
+    public int[] treeEncode() throws Throwable {
+        return Pipeline.treeEncode(tree, blocks);
+    }
+}
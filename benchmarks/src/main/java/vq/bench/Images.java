@@ -0,0 +1,56 @@
+package vq.bench;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmark inputs: a file name from the bundled {@code assets} directory, or
+ * {@code synthetic-<size>} for a deterministic size x size grayscale test image.
+ */
+final class Images {
+
+    private Images() {
+    }
+
+    static BufferedImage load(String name) throws IOException {
+        if (name.startsWith("synthetic-")) {
+            return synthetic(Integer.parseInt(name.substring("synthetic-".length())));
+        }
+        File file = new File(assetsDir(), name);
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Cannot read benchmark image " + file);
+        }
+        return image;
+    }
+
+    /** Smooth gradients with texture and noise, so blocks are neither flat nor random. */
+    static BufferedImage synthetic(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+        Random random = new Random(size);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                double value = 128
+                        + 60 * Math.sin(x * 0.013) * Math.cos(y * 0.021)
+                        + 30 * Math.sin((x + y) * 0.11)
+                        + random.nextGaussian() * 8;
+                pixels[y * size + x] = (byte) Math.max(0, Math.min(255, (int) value));
+            }
+        }
+        return image;
+    }
+
+    private static File assetsDir() {
+        String configured = System.getProperty("vq.assets");
+        if (configured != null) {
+            return new File(configured);
+        }
+        File local = new File("assets");
+        return local.isDirectory() ? local : new File("../assets");
+    }
+}
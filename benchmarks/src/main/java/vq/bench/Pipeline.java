@@ -0,0 +1,195 @@
+package vq.bench;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Entry points into the compression pipeline.
+ *
+ * The application classes live in the default package, which Java code in a
+ * named package cannot reference and JMH cannot generate benchmarks for. The
+ * stages are therefore bound once through {@code static final} method handles,
+ * which the JIT inlines like direct calls. Block matrices are passed around as
+ * {@code Object}.
+ */
+final class Pipeline {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+    private static final Class<?> APP = load("App");
+    private static final Class<?> BLOCK_MATRIX = load("BlockMatrix");
+    private static final Class<?> TRAINING_OPTIONS = load("TrainingOptions");
+    private static final Class<?> COMPRESSED_IMAGE = load("CompressedImage");
+    private static final Class<?> TILED_DECODER = load("TiledDecoder");
+    private static final Class<?> RANGE_INDEX_CODER = load("RangeIndexCoder");
+    private static final Class<?> LBG_TRAINER = load("LBGTrainer");
+    private static final Class<?> TREE_CODE_BOOK = load("TreeCodeBook");
+    private static final Class<?> REGION_DECODER = load("RegionDecoder");
+
+    private static final MethodHandle DIVIDE_INTO_BLOCKS =
+            staticMethod(APP, "divideIntoBlocks", BLOCK_MATRIX, BufferedImage.class, int.class);
+    private static final MethodHandle CREATE_CODE_BOOK =
+            staticMethod(APP, "Create_Code_Book", HashMap.class, BLOCK_MATRIX, int.class, long.class);
+    private static final MethodHandle CREATE_CODE_BOOK_WITH_OPTIONS =
+            staticMethod(APP, "Create_Code_Book", HashMap.class, BLOCK_MATRIX, int.class, TRAINING_OPTIONS);
+    private static final MethodHandle CREATE_COMPRESSED_IMG =
+            staticMethod(APP, "create_compressed_img", List.class, BLOCK_MATRIX, HashMap.class);
+    private static final MethodHandle DECOMPRESS =
+            staticMethod(APP, "Decompress", BLOCK_MATRIX, List.class, HashMap.class, int.class);
+    private static final MethodHandle RECONSTRUCT_IMAGE =
+            staticMethod(APP, "reconstructImage", BufferedImage.class, BLOCK_MATRIX, int.class, int.class, int.class);
+    private static final MethodHandle COMPUTE_MSE =
+            staticMethod(APP, "Compute_MSE", double.class, BufferedImage.class, BufferedImage.class);
+    private static final MethodHandle COMPRESSED_IMAGE_OF =
+            staticMethod(COMPRESSED_IMAGE, "of", COMPRESSED_IMAGE, int.class, int.class, int.class, HashMap.class, List.class);
+    private static final MethodHandle NEW_TILED_DECODER = constructor(TILED_DECODER);
+    private static final MethodHandle TILED_DECODE =
+            virtualMethod(TILED_DECODER, "decode", BufferedImage.class, COMPRESSED_IMAGE);
+    private static final MethodHandle GET_INDICES = virtualMethod(COMPRESSED_IMAGE, "getIndices", int[].class);
+    private static final MethodHandle GET_KEY_LENGTH = virtualMethod(COMPRESSED_IMAGE, "getKeyLength", int.class);
+    private static final MethodHandle RANGE_ENCODE =
+            staticMethod(RANGE_INDEX_CODER, "encode", byte[].class, int[].class, int.class, int.class);
+    private static final MethodHandle RANGE_DECODE =
+            staticMethod(RANGE_INDEX_CODER, "decode", int[].class, byte[].class, int.class, int.class, int.class);
+    private static final MethodHandle WRITE_COMPRESSED_IMAGE =
+            virtualMethod(COMPRESSED_IMAGE, "write", void.class, Path.class);
+    private static final MethodHandle OPEN_REGION_DECODER =
+            staticMethod(REGION_DECODER, "open", REGION_DECODER, Path.class);
+    private static final MethodHandle DECODE_REGION = virtualMethod(REGION_DECODER, "decodeRegion",
+            BufferedImage.class, int.class, int.class, int.class, int.class);
+    private static final MethodHandle NEW_LBG_TRAINER = constructor(LBG_TRAINER);
+    private static final MethodHandle TRAIN_TREE = virtualMethod(LBG_TRAINER, "trainTree", TREE_CODE_BOOK,
+            BLOCK_MATRIX, int.class, Random.class, TRAINING_OPTIONS);
+    private static final MethodHandle TREE_ENCODE = virtualMethod(TREE_CODE_BOOK, "encode", int[].class, BLOCK_MATRIX);
+    private static final MethodHandle SAMPLED_OPTIONS =
+            staticMethod(TRAINING_OPTIONS, "sampled", TRAINING_OPTIONS, int.class);
+    private static final MethodHandle SET_MAX_ITERATIONS =
+            virtualMethod(TRAINING_OPTIONS, "setMaxIterations", TRAINING_OPTIONS, int.class);
+
+    private Pipeline() {
+    }
+
+    static Object divideIntoBlocks(BufferedImage image, int blockSize) throws Throwable {
+        return DIVIDE_INTO_BLOCKS.invoke(image, blockSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    static HashMap<String, double[]> createCodeBook(Object blocks, int codeBookSize, long seed) throws Throwable {
+        return (HashMap<String, double[]>) CREATE_CODE_BOOK.invoke(blocks, codeBookSize, seed);
+    }
+
+    /** Quick codebook for benchmark setup: trained on a sample with a bounded number of iterations. */
+    @SuppressWarnings("unchecked")
+    static HashMap<String, double[]> createSampledCodeBook(Object blocks, int codeBookSize, int sampleSize,
+                                                         int maxIterations) throws Throwable {
+        Object options = SET_MAX_ITERATIONS.invoke(SAMPLED_OPTIONS.invoke(sampleSize), maxIterations);
+        return (HashMap<String, double[]>) CREATE_CODE_BOOK_WITH_OPTIONS.invoke(blocks, codeBookSize, options);
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<String> createCompressedImg(Object blocks, HashMap<String, double[]> codeBook) throws Throwable {
+        return (List<String>) CREATE_COMPRESSED_IMG.invoke(blocks, codeBook);
+    }
+
+    static Object decompress(List<String> compressedBlocks, HashMap<String, double[]> codeBook, int blockLength)
+            throws Throwable {
+        return DECOMPRESS.invoke(compressedBlocks, codeBook, blockLength);
+    }
+
+    static BufferedImage reconstructImage(Object blocks, int width, int height, int blockSize) throws Throwable {
+        return (BufferedImage) RECONSTRUCT_IMAGE.invoke(blocks, width, height, blockSize);
+    }
+
+    static double computeMse(BufferedImage original, BufferedImage reconstructed) throws Throwable {
+        return (double) COMPUTE_MSE.invoke(original, reconstructed);
+    }
+
+    static Object compressedImage(int width, int height, int blockSize, HashMap<String, double[]> codeBook,
+                                  List<String> compressedBlocks) throws Throwable {
+        return COMPRESSED_IMAGE_OF.invoke(width, height, blockSize, codeBook, compressedBlocks);
+    }
+
+    static Object tiledDecoder() throws Throwable {
+        return NEW_TILED_DECODER.invoke();
+    }
+
+    static BufferedImage tiledDecode(Object decoder, Object compressedImage) throws Throwable {
+        return (BufferedImage) TILED_DECODE.invoke(decoder, compressedImage);
+    }
+
+    /** Tree-structured codebook for benchmark setup, trained on a sample like {@link #createSampledCodeBook}. */
+    static Object createSampledTreeCodeBook(Object blocks, int codeBookSize, int sampleSize, int maxIterations)
+            throws Throwable {
+        Object options = SET_MAX_ITERATIONS.invoke(SAMPLED_OPTIONS.invoke(sampleSize), maxIterations);
+        return TRAIN_TREE.invoke(NEW_LBG_TRAINER.invoke(), blocks, codeBookSize, new Random(), options);
+    }
+
+    static int[] treeEncode(Object tree, Object blocks) throws Throwable {
+        return (int[]) TREE_ENCODE.invoke(tree, blocks);
+    }
+
+    static int[] indices(Object compressedImage) throws Throwable {
+        return (int[]) GET_INDICES.invoke(compressedImage);
+    }
+
+    static int keyLength(Object compressedImage) throws Throwable {
+        return (int) GET_KEY_LENGTH.invoke(compressedImage);
+    }
+
+    static byte[] rangeEncode(int[] indices, int bits, int blocksPerRow) throws Throwable {
+        return (byte[]) RANGE_ENCODE.invoke(indices, bits, blocksPerRow);
+    }
+
+    static int[] rangeDecode(byte[] coded, int count, int bits, int blocksPerRow) throws Throwable {
+        return (int[]) RANGE_DECODE.invoke(coded, count, bits, blocksPerRow);
+    }
+
+    static void writeCompressedImage(Object compressedImage, Path path) throws Throwable {
+        WRITE_COMPRESSED_IMAGE.invoke(compressedImage, path);
+    }
+
+    static Object regionDecoder(Path path) throws Throwable {
+        return OPEN_REGION_DECODER.invoke(path);
+    }
+
+    static BufferedImage decodeRegion(Object decoder, int x, int y, int width, int height) throws Throwable {
+        return (BufferedImage) DECODE_REGION.invoke(decoder, x, y, width, height);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return LOOKUP.findStatic(owner, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner) {
+        try {
+            return LOOKUP.findConstructor(owner, MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtualMethod(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return LOOKUP.findVirtual(owner, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
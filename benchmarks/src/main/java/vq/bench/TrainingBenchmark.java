@@ -0,0 +1,49 @@
+package vq.bench;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code Create_Code_Book} with a fixed seed. Training runs to convergence and a
+ * single invocation can take seconds, so each one is timed on its own.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrainingBenchmark {
+
+    @Param({"cameraman.bmp", "girlgray.bmp", "synthetic-1024"})
+    public String image;
+
+    @Param({"2", "4", "8"})
+    public int blockSize;
+
+    @Param({"16", "64", "256", "1024"})
+    public int codeBookSize;
+
+    private Object blocks;
+
+    @Setup
+    public void setUp() throws Throwable {
+        blocks = Pipeline.divideIntoBlocks(Images.load(image), blockSize);
+    }
+
+    @Benchmark
+    public HashMap<String, double[]> createCodeBook() throws Throwable {
+        return Pipeline.createCodeBook(blocks, codeBookSize, 42L);
+    }
+}
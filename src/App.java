@@ -1,13 +1,19 @@
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import javax.imageio.ImageIO;
 import java.awt.color.ColorSpace;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
 
 public class App {
 
+    /** Relative distortion improvement below which warm-started refinement stops. */
+    public static final double WARM_START_MIN_IMPROVEMENT = 1e-3;
+
     public static BufferedImage convertToGrayscale(BufferedImage RGBImage) {
         BufferedImage grayImage = new BufferedImage(
             RGBImage.getWidth(),
@@ -18,21 +24,38 @@ public class App {
         return grayImage;
     }
 
-    public static List<int[]> divideIntoBlocks(BufferedImage grayImage, int blockSize) {
-        List<int[]> blocks = new ArrayList<>();
+    public static BlockMatrix divideIntoBlocks(BufferedImage image, int blockSize) {
+        BufferedImage grayImage = GrayRaster.toGray(image);
         int imgWidth = grayImage.getWidth();
         int imgHeight = grayImage.getHeight();
+        int blocksPerRow = imgWidth / blockSize;
+        int blocksPerColumn = imgHeight / blockSize;
+        BlockMatrix blocks = new BlockMatrix(blocksPerRow * blocksPerColumn, blockSize * blockSize);
+        byte[] data = blocks.data();
+        GrayRaster raster = GrayRaster.of(grayImage);
+        int index = 0;
+        if (raster != null) {
+            byte[] pixels = raster.data();
+            byte[] toGray = raster.sampleToGray();
+            for (int y = 0; y <= imgHeight - blockSize; y += blockSize) {
+                for (int x = 0; x <= imgWidth - blockSize; x += blockSize) {
+                    for (int dy = 0; dy < blockSize; dy++) {
+                        int row = raster.index(x, y + dy);
+                        for (int dx = 0; dx < blockSize; dx++) {
+                            data[index++] = toGray[pixels[row + dx] & 0xFF];
+                        }
+                    }
+                }
+            }
+            return blocks;
+        }
         for (int y = 0; y <= imgHeight - blockSize; y += blockSize) {
             for (int x = 0; x <= imgWidth - blockSize; x += blockSize) {
-                int[] blockVector = new int[blockSize * blockSize];
-                int index = 0;
                 for (int dy = 0; dy < blockSize; dy++) {
                     for (int dx = 0; dx < blockSize; dx++) {
-                        int pixel = grayImage.getRGB(x + dx, y + dy) & 0xFF;
-                        blockVector[index++] = pixel;
+                        data[index++] = (byte) grayImage.getRGB(x + dx, y + dy);
                     }
                 }
-                blocks.add(blockVector);
             }
         }
         return blocks;
@@ -56,6 +79,25 @@ public class App {
         return avgVector;
     }
 
+    public static double[] computeAverageVector(BlockMatrix blocks) {
+        if (blocks == null || blocks.isEmpty()) {
+            return new double[0];
+        }
+        int vectorLength = blocks.dim();
+        long[] sums = new long[vectorLength];
+        byte[] data = blocks.data();
+        for (int offset = 0, end = blocks.size() * vectorLength; offset < end; offset += vectorLength) {
+            for (int i = 0; i < vectorLength; i++) {
+                sums[i] += data[offset + i] & 0xFF;
+            }
+        }
+        double[] avgVector = new double[vectorLength];
+        for (int i = 0; i < vectorLength; i++) {
+            avgVector[i] = (double) sums[i] / blocks.size();
+        }
+        return avgVector;
+    }
+
     public static double Compute_Distance(int[] vector1, double[] vector2) {
         double distance = 0;
         for (int i = 0; i < vector1.length; i++) {
@@ -65,6 +107,17 @@ public class App {
         return Math.sqrt(distance);
     }
 
+    public static double Compute_Distance(BlockMatrix blocks, int block, double[] vector) {
+        byte[] data = blocks.data();
+        int offset = blocks.offset(block);
+        double distance = 0;
+        for (int i = 0; i < vector.length; i++) {
+            double diff = (data[offset + i] & 0xFF) - vector[i];
+            distance += diff * diff;
+        }
+        return Math.sqrt(distance);
+    }
+
     public static double[][] splitVector(double[] vector) {
         int length = vector.length;
         double[] plusHalf = new double[length];
@@ -77,133 +130,171 @@ public class App {
     }
 
     public static HashMap<String, double[]> Create_Code_Book(List<int[]> blocks, int codeBookSize) {
+        return Create_Code_Book(blocks, codeBookSize, new Random());
+    }
+
+    public static HashMap<String, double[]> Create_Code_Book(List<int[]> blocks, int codeBookSize, long seed) {
+        return Create_Code_Book(blocks, codeBookSize, new Random(seed));
+    }
+
+    public static HashMap<String, double[]> Create_Code_Book(List<int[]> blocks, int codeBookSize, Random random) {
+        return Create_Code_Book(BlockMatrix.fromList(blocks), codeBookSize, random);
+    }
+
+    public static HashMap<String, double[]> Create_Code_Book(BlockMatrix blocks, int codeBookSize) {
+        return Create_Code_Book(blocks, codeBookSize, new Random());
+    }
+
+    public static HashMap<String, double[]> Create_Code_Book(BlockMatrix blocks, int codeBookSize, long seed) {
+        return Create_Code_Book(blocks, codeBookSize, new Random(seed));
+    }
+
+    public static HashMap<String, double[]> Create_Code_Book(BlockMatrix blocks, int codeBookSize, Random random) {
         if (blocks == null || blocks.isEmpty()) {
             return new HashMap<>();
         }
-        List<double[]> startvector = new ArrayList<>();
-        startvector.add(computeAverageVector(blocks));
-        while (startvector.size() < codeBookSize) {
-            List<double[]> newvector = new ArrayList<>();
-            for (double[] vector : startvector) {
-                double[][] split = splitVector(vector);
-                double[] plusHalf = split[0];
-                double[] minusHalf = split[1];
-                List<int[]> plusHalfBlocks = new ArrayList<>();
-                List<int[]> minusHalfBlocks = new ArrayList<>();
-                for (int[] block : blocks) {
-                    double distToPlus = Compute_Distance(block, plusHalf);
-                    double distToMinus = Compute_Distance(block, minusHalf);
-                    if (distToPlus < distToMinus) {
-                        plusHalfBlocks.add(block);
-                    } else {
-                        minusHalfBlocks.add(block);
-                    }
-                }
-                double[] plusAvg = plusHalfBlocks.isEmpty() ? plusHalf : computeAverageVector(plusHalfBlocks);
-                double[] minusAvg = minusHalfBlocks.isEmpty() ? minusHalf : computeAverageVector(minusHalfBlocks);
-                newvector.add(plusAvg);
-                newvector.add(minusAvg);
-            }
-            startvector = newvector;
-        }
-        boolean changed;
-        HashMap<Integer, List<int[]>> assignments = new HashMap<>();
-        Random random = new Random();
-        do {
-            changed = false;
-            assignments.clear();
-            for (int i = 0; i < startvector.size(); i++) {
-                assignments.put(i, new ArrayList<>());
-            }
-            for (int[] block : blocks) {
-                int bestIndex = 0;
-                double bestDist = Double.MAX_VALUE;
-                for (int i = 0; i < startvector.size(); i++) {
-                    double dist = Compute_Distance(block, startvector.get(i));
-                    if (dist < bestDist) {
-                        bestDist = dist;
-                        bestIndex = i;
-                    }
-                }
-                assignments.get(bestIndex).add(block);
-            }
-            for (int i = 0; i < startvector.size(); i++) {
-                if (assignments.get(i).isEmpty() && !blocks.isEmpty()) {
-                    assignments.get(i).add(blocks.get(random.nextInt(blocks.size())));
-                    changed = true;
-                }
-            }
-            for (int i = 0; i < startvector.size(); i++) {
-                List<int[]> group = assignments.get(i);
-                if (!group.isEmpty()) {
-                    double[] newvector = computeAverageVector(group);
-                    if (!Arrays.equals(startvector.get(i), newvector)) {
-                        startvector.set(i, newvector);
-                        changed = true;
-                    }
-                }
-            }
-        } while (changed);
+        double[][] centroids = new LBGTrainer().train(blocks, codeBookSize, random);
+        return toCodeBook(centroids, codeBookSize);
+    }
+
+    /**
+     * Refines an existing codebook on new blocks instead of training one from scratch,
+     * keeping its binary codes. Refinement stops once a pass improves distortion by
+     * less than {@link #WARM_START_MIN_IMPROVEMENT}.
+     */
+    public static HashMap<String, double[]> Create_Code_Book(BlockMatrix blocks, HashMap<String, double[]> initialCodeBook) {
+        if (blocks == null || blocks.isEmpty() || initialCodeBook.isEmpty()) {
+            return new HashMap<>(initialCodeBook);
+        }
+        TrainingResult result = new LBGTrainer().warmStart(blocks, toCentroids(initialCodeBook), new Random(),
+                TrainingOptions.full().setMinRelativeImprovement(WARM_START_MIN_IMPROVEMENT));
+        return toCodeBook(result.getCentroids(), initialCodeBook.size());
+    }
+
+    /** Bits per index for a codebook of {@code codeBookSize} entries; at least one entry is required. */
+    public static int keyLength(int codeBookSize) {
+        if (codeBookSize < 1) {
+            throw new IllegalArgumentException("Codebook must have at least one entry");
+        }
+        return (int) Math.ceil(Math.log(codeBookSize) / Math.log(2));
+    }
+
+    public static HashMap<String, double[]> Create_Code_Book(BlockMatrix blocks, int codeBookSize, TrainingOptions options) {
+        if (blocks == null || blocks.isEmpty()) {
+            return new HashMap<>();
+        }
+        TrainingResult result = new LBGTrainer().train(blocks, codeBookSize, new Random(), options);
+        return toCodeBook(result.getCentroids(), codeBookSize);
+    }
+
+    public static HashMap<String, double[]> toCodeBook(double[][] centroids, int codeBookSize) {
         HashMap<String, double[]> codeBook = new HashMap<>();
-        int keyLength = (int) Math.ceil(Math.log(codeBookSize) / Math.log(2));
-        for (int i = 0; i < startvector.size(); i++) {
-            String binaryCode = String.format("%" + keyLength + "s", Integer.toBinaryString(i)).replace(' ', '0');
-            codeBook.put(binaryCode, startvector.get(i));
+        int keyLength = keyLength(codeBookSize);
+        for (int i = 0; i < centroids.length; i++) {
+            // A single codeword needs no bits; "%0s" is not a valid format, so give it the empty code.
+            String binaryCode = keyLength == 0 ? ""
+                    : String.format("%" + keyLength + "s", Integer.toBinaryString(i)).replace(' ', '0');
+            codeBook.put(binaryCode, centroids[i]);
         }
         return codeBook;
     }
 
+    /** Returns the codebook's centroids ordered by the index their binary code encodes. */
+    public static double[][] toCentroids(HashMap<String, double[]> codeBook) {
+        double[][] centroids = new double[codeBook.size()][];
+        for (Entry<String, double[]> entry : codeBook.entrySet()) {
+            int index = entry.getKey().isEmpty() ? 0 : Integer.parseInt(entry.getKey(), 2);
+            centroids[index] = entry.getValue();
+        }
+        return centroids;
+    }
+
     public static List<String> create_compressed_img(List<int[]> blocks, HashMap<String, double[]> codeBook) {
-        List<String> compressedBlocks = new ArrayList<>();
-        for (int[] block : blocks) {
-            double minDistance = Double.MAX_VALUE;
-            String minCode = null;
-            for (Entry<String, double[]> entry : codeBook.entrySet()) {
-                String code = entry.getKey();
-                double[] centroid = entry.getValue();
-                double distance = Compute_Distance(block, centroid);
-                if (distance < minDistance) {
-                    minDistance = distance;
-                    minCode = code;
-                }
-            }
-            compressedBlocks.add(minCode != null ? minCode : "");
+        return create_compressed_img(BlockMatrix.fromList(blocks), codeBook);
+    }
+
+    public static List<String> create_compressed_img(BlockMatrix blocks, HashMap<String, double[]> codeBook) {
+        return create_compressed_img(blocks, codeBook, CodewordSearch.DEFAULT);
+    }
+
+    public static List<String> create_compressed_img(BlockMatrix blocks, HashMap<String, double[]> codeBook,
+                                                     CodewordSearch.Factory searchFactory) {
+        String[] codes = new String[codeBook.size()];
+        double[][] centroids = new double[codeBook.size()][];
+        int index = 0;
+        for (Entry<String, double[]> entry : codeBook.entrySet()) {
+            codes[index] = entry.getKey();
+            centroids[index] = entry.getValue();
+            index++;
+        }
+        CodewordSearch search = searchFactory.build(centroids);
+        List<String> compressedBlocks = new ArrayList<>(blocks.size());
+        for (int block = 0; block < blocks.size(); block++) {
+            int nearest = search.nearest(blocks, block);
+            compressedBlocks.add(nearest >= 0 ? codes[nearest] : "");
         }
         return compressedBlocks;
     }
 
-    public static List<int[]> Decompress(List<String> compressedBlocks, HashMap<String, double[]> codeBook, int blockLength) {
-        List<int[]> decompressedBlocks = new ArrayList<>();
-        for (String binaryCode : compressedBlocks) {
-            double[] centroid = codeBook.get(binaryCode);
-            if (centroid != null) {
-                int[] vectorInt = new int[centroid.length];
-                for (int i = 0; i < centroid.length; i++) {
-                    vectorInt[i] = (int) Math.round(centroid[i]);
-                }
-                decompressedBlocks.add(vectorInt);
-            } else {
-                decompressedBlocks.add(new int[blockLength]);
+    /** Encodes every block by descending {@code tree}, whose leaves are the entries of {@code codeBook}. */
+    public static List<String> create_compressed_img(BlockMatrix blocks, HashMap<String, double[]> codeBook,
+                                                     TreeCodeBook tree) {
+        String[] codes = new String[tree.size()];
+        for (String code : codeBook.keySet()) {
+            codes[code.isEmpty() ? 0 : Integer.parseInt(code, 2)] = code;
+        }
+        List<String> compressedBlocks = new ArrayList<>(blocks.size());
+        for (int block = 0; block < blocks.size(); block++) {
+            String code = codes[tree.encode(blocks, block)];
+            compressedBlocks.add(code != null ? code : "");
+        }
+        return compressedBlocks;
+    }
+
+    public static BlockMatrix Decompress(List<String> compressedBlocks, HashMap<String, double[]> codeBook, int blockLength) {
+        HashMap<String, byte[]> rounded = new HashMap<>();
+        for (Entry<String, double[]> entry : codeBook.entrySet()) {
+            rounded.put(entry.getKey(), CompressedImage.quantizeCodeBook(new double[][]{entry.getValue()}, blockLength));
+        }
+        BlockMatrix decompressedBlocks = new BlockMatrix(compressedBlocks.size(), blockLength);
+        for (int block = 0; block < compressedBlocks.size(); block++) {
+            byte[] pixels = rounded.get(compressedBlocks.get(block));
+            if (pixels != null) {
+                System.arraycopy(pixels, 0, decompressedBlocks.data(), decompressedBlocks.offset(block), blockLength);
             }
         }
         return decompressedBlocks;
     }
 
+    /** Pixel values outside 0-255 are clamped, as this decoder always did. */
     public static BufferedImage reconstructImage(List<int[]> decompressedBlocks, int imgWidth, int imgHeight, int blockSize) {
+        List<int[]> clamped = new ArrayList<>(decompressedBlocks.size());
+        for (int[] block : decompressedBlocks) {
+            int[] pixels = new int[block.length];
+            for (int i = 0; i < block.length; i++) {
+                pixels[i] = Math.max(0, Math.min(255, block[i]));
+            }
+            clamped.add(pixels);
+        }
+        return reconstructImage(BlockMatrix.fromList(clamped), imgWidth, imgHeight, blockSize);
+    }
+
+    public static BufferedImage reconstructImage(BlockMatrix decompressedBlocks, int imgWidth, int imgHeight, int blockSize) {
         BufferedImage reconstructedImage = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_BYTE_GRAY);
+        GrayRaster raster = GrayRaster.of(reconstructedImage);
+        byte[] pixels = raster.data();
+        byte[] toSample = GrayRaster.GRAY_TO_SAMPLE;
+        byte[] data = decompressedBlocks.data();
+        int pixelsPerBlock = Math.min(decompressedBlocks.dim(), blockSize * blockSize);
         int blockIndex = 0;
         for (int y = 0; y <= imgHeight - blockSize && blockIndex < decompressedBlocks.size(); y += blockSize) {
             for (int x = 0; x <= imgWidth - blockSize && blockIndex < decompressedBlocks.size(); x += blockSize) {
-                int[] block = decompressedBlocks.get(blockIndex);
-                int pixelIndex = 0;
-                for (int dy = 0; dy < blockSize; dy++) {
-                    for (int dx = 0; dx < blockSize; dx++) {
-                        if (pixelIndex < block.length) {
-                            int pixelValue = Math.max(0, Math.min(255, block[pixelIndex]));
-                            int rgb = (pixelValue << 16) | (pixelValue << 8) | pixelValue;
-                            reconstructedImage.setRGB(x + dx, y + dy, rgb);
-                            pixelIndex++;
-                        }
+                int offset = decompressedBlocks.offset(blockIndex);
+                for (int pixelIndex = 0; pixelIndex < pixelsPerBlock; pixelIndex += blockSize) {
+                    int row = raster.index(x, y + pixelIndex / blockSize);
+                    int count = Math.min(blockSize, pixelsPerBlock - pixelIndex);
+                    for (int dx = 0; dx < count; dx++) {
+                        pixels[row + dx] = toSample[data[offset + pixelIndex + dx] & 0xFF];
                     }
                 }
                 blockIndex++;
@@ -216,11 +307,32 @@ public class App {
         int width = originalImage.getWidth();
         int height = originalImage.getHeight();
         int totalPixels = width * height;
+        BufferedImage originalGray = GrayRaster.toGray(originalImage);
+        BufferedImage reconstructedGray = GrayRaster.toGray(reconstructedImage);
+        GrayRaster original = GrayRaster.of(originalGray);
+        GrayRaster reconstructed = GrayRaster.of(reconstructedGray);
+        if (original != null && reconstructed != null) {
+            byte[] originalPixels = original.data();
+            byte[] reconstructedPixels = reconstructed.data();
+            byte[] originalToGray = original.sampleToGray();
+            byte[] reconstructedToGray = reconstructed.sampleToGray();
+            long totalError = 0;
+            for (int y = 0; y < height; y++) {
+                int originalRow = original.index(0, y);
+                int reconstructedRow = reconstructed.index(0, y);
+                for (int x = 0; x < width; x++) {
+                    int error = (originalToGray[originalPixels[originalRow + x] & 0xFF] & 0xFF)
+                            - (reconstructedToGray[reconstructedPixels[reconstructedRow + x] & 0xFF] & 0xFF);
+                    totalError += error * error;
+                }
+            }
+            return (double) totalError / totalPixels;
+        }
         double totalError = 0.0;
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
-                int originalPixel = originalImage.getRGB(x, y) & 0xFF;
-                int reconstructedPixel = reconstructedImage.getRGB(x, y) & 0xFF;
+                int originalPixel = originalGray.getRGB(x, y) & 0xFF;
+                int reconstructedPixel = reconstructedGray.getRGB(x, y) & 0xFF;
                 int error = originalPixel - reconstructedPixel;
                 totalError += error * error;
             }
@@ -256,6 +368,13 @@ public class App {
         }
     }
 
+    /** Loads codebook centroids from a .vqc file or a serialized codebook.ser. */
+    public static double[][] loadCentroids(String filePath) throws IOException, ClassNotFoundException {
+        return filePath.endsWith(".ser")
+                ? toCentroids(loadCodeBook(filePath))
+                : CompressedImage.readCentroids(Paths.get(filePath));
+    }
+
     public static void saveCompressedBlocks(List<String> compressedBlocks, String filePath) throws IOException {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
             for (String code : compressedBlocks) {
@@ -276,23 +395,147 @@ public class App {
         return compressedBlocks;
     }
 
+    /**
+     * Non-interactive batch mode:
+     * {@code --batch <dir|file>... --out <dir> [--block 4] [--codebook 16] [--target psnr=30]
+     * [--pretrained file [--warm-start]] [--threads n] [--entropy] [--metrics file.json]}. A target picks the
+     * block and codebook size from the first image. Metrics are also published over JMX while the batch runs.
+     */
+    public static void runBatch(String[] args) {
+        List<Path> inputs = new ArrayList<>();
+        Path outputDir = Paths.get(".");
+        Path pretrained = null;
+        int blockSize = 4;
+        int codeBookSize = 16;
+        int threads = Runtime.getRuntime().availableProcessors();
+        CompressedImage.Coding coding = CompressedImage.Coding.PACKED;
+        Path metricsPath = null;
+        boolean warmStart = false;
+        RateDistortionTuner.Target target = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--out":
+                        outputDir = Paths.get(args[++i]);
+                        break;
+                    case "--block":
+                        blockSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--codebook":
+                        codeBookSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--target":
+                        target = RateDistortionTuner.Target.parse(args[++i]);
+                        break;
+                    case "--pretrained":
+                        pretrained = Paths.get(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--entropy":
+                        coding = CompressedImage.Coding.RANGE;
+                        break;
+                    case "--warm-start":
+                        warmStart = true;
+                        break;
+                    case "--metrics":
+                        metricsPath = Paths.get(args[++i]);
+                        break;
+                    default:
+                        inputs.add(Paths.get(args[i]));
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Usage: java App --batch <dir|file>... --out <dir> [--block 4] [--codebook 16] "
+                    + "[--target mse=50|psnr=30|ratio=8] [--pretrained codebook.vqc [--warm-start]] [--threads n] "
+                    + "[--entropy] [--metrics metrics.json]");
+            return;
+        }
+        if (blockSize <= 0 || codeBookSize <= 0 || threads <= 0) {
+            System.out.println("Block size, codebook size and thread count must be positive.");
+            return;
+        }
+        if (target != null && pretrained != null) {
+            System.out.println("--target picks a new codebook and cannot be combined with --pretrained.");
+            return;
+        }
+
+        try {
+            List<Path> files = BatchCompressor.collectInputs(inputs);
+            PipelineMetrics metrics = new PipelineMetrics();
+            metrics.register(PipelineMetrics.DEFAULT_OBJECT_NAME);
+            // A single run needs one codebook: the tuned one put below, or the one compress() resolves.
+            CodeBookCache cache = new CodeBookCache(1);
+            BatchCompressor compressor = new BatchCompressor(threads, cache)
+                    .setCoding(coding)
+                    .setWarmStart(warmStart)
+                    .setListener(metrics);
+            if (target != null && !files.isEmpty()) {
+                BufferedImage first = ImageIO.read(files.get(0).toFile());
+                RateDistortionTuner.Candidate tuned = first == null ? null : new RateDistortionTuner().tune(first, target);
+                if (tuned == null) {
+                    System.out.println("No block and codebook size meets " + target + " on " + files.get(0) + ".");
+                    return;
+                }
+                System.out.println("Chosen for " + target + ": " + tuned);
+                blockSize = tuned.getBlockSize();
+                codeBookSize = tuned.getCodeBookSize();
+                // The tuner already trained this codebook on the first image; reuse it instead of training again.
+                cache.put(blockSize, codeBookSize, compressor.codeBookSource(files.get(0), null), tuned.getCentroids());
+            }
+            long start = System.nanoTime();
+            List<BatchCompressor.Result> results = compressor.compress(files, outputDir, blockSize, codeBookSize, pretrained);
+            int failed = 0;
+            for (BatchCompressor.Result result : results) {
+                if (result.isSuccess()) {
+                    System.out.println(result.getInput() + " -> " + result.getOutput()
+                            + " (ratio " + result.getCompressionRatio() + ")");
+                } else {
+                    failed++;
+                    System.out.println(result.getInput() + ": " + result.getError());
+                }
+            }
+            System.out.println("Compressed " + (results.size() - failed) + " of " + results.size() + " images in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            System.out.println("Stage times (ms): " + metrics.getStageMillis());
+            if (metricsPath != null) {
+                metrics.writeJson(metricsPath);
+                System.out.println("Metrics saved to: " + metricsPath);
+            }
+        } catch (IOException e) {
+            System.out.println("Error during batch compression: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Batch compression interrupted.");
+        }
+    }
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(args);
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
         while (true) {
             System.out.println("\nVector Quantization Image Compression");
             System.out.println("1: Compress");
             System.out.println("2: Decompress");
-            System.out.println("3: Exit");
-            System.out.print("Choose an option (1-3): ");
+            System.out.println("3: Compress large image (streaming, existing codebook)");
+            System.out.println("4: Decompress large image (streaming)");
+            System.out.println("5: Compress color image (YCbCr)");
+            System.out.println("6: Decompress color image");
+            System.out.println("7: Exit");
+            System.out.print("Choose an option (1-7): ");
             int choice;
             try {
                 choice = Integer.parseInt(scanner.nextLine());
             } catch (NumberFormatException e) {
-                System.out.println("Invalid input. Please enter a number (1-3).");
+                System.out.println("Invalid input. Please enter a number (1-7).");
                 continue;
             }
 
-            if (choice == 3) {
+            if (choice == 7) {
                 System.out.println("Exiting...");
                 break;
             }
@@ -303,37 +546,89 @@ public class App {
                     String inputImagePath = scanner.nextLine();
                     BufferedImage grayImage = ImageIO.read(new File(inputImagePath));
 
-                    System.out.print("Enter block size (e.g., 4 or 8 for 4x4 or 8x8 blocks): ");
+                    System.out.print("Enter a target to choose block and codebook size automatically "
+                            + "(mse=50, psnr=30 or ratio=8; press Enter to choose manually): ");
+                    String targetInput = scanner.nextLine().trim();
                     int blockSize;
-                    try {
-                        blockSize = Integer.parseInt(scanner.nextLine());
-                        if (blockSize <= 0 || blockSize > Math.min(grayImage.getWidth(), grayImage.getHeight())) {
-                            System.out.println("Invalid block size. Must be positive and not exceed image dimensions.");
+                    int codeBookSize;
+                    if (!targetInput.isEmpty()) {
+                        RateDistortionTuner.Target target;
+                        try {
+                            target = RateDistortionTuner.Target.parse(targetInput);
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid target. " + e.getMessage());
+                            continue;
+                        }
+                        List<RateDistortionTuner.Candidate> candidates = new RateDistortionTuner().evaluate(grayImage);
+                        for (RateDistortionTuner.Candidate candidate : candidates) {
+                            System.out.println("  " + candidate);
+                        }
+                        RateDistortionTuner.Candidate tuned = RateDistortionTuner.select(candidates, target);
+                        if (tuned == null) {
+                            System.out.println("No block and codebook size meets " + target + ".");
+                            continue;
+                        }
+                        System.out.println("Chosen for " + target + ": " + tuned);
+                        blockSize = tuned.getBlockSize();
+                        codeBookSize = tuned.getCodeBookSize();
+                    } else {
+                        System.out.print("Enter block size (e.g., 4 or 8 for 4x4 or 8x8 blocks): ");
+                        try {
+                            blockSize = Integer.parseInt(scanner.nextLine());
+                            if (blockSize <= 0 || blockSize > Math.min(grayImage.getWidth(), grayImage.getHeight())) {
+                                System.out.println("Invalid block size. Must be positive and not exceed image dimensions.");
+                                continue;
+                            }
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid block size. Please enter a positive integer.");
+                            continue;
+                        }
+
+                        System.out.print("Enter codebook size (e.g., 16, 32, 64): ");
+                        try {
+                            codeBookSize = Integer.parseInt(scanner.nextLine());
+                            if (codeBookSize <= 0) {
+                                System.out.println("Invalid codebook size. Must be positive.");
+                                continue;
+                            }
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid codebook size. Please enter a positive integer.");
                             continue;
                         }
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid block size. Please enter a positive integer.");
-                        continue;
                     }
 
-                    System.out.print("Enter codebook size (e.g., 16, 32, 64): ");
-                    int codeBookSize;
-                    try {
-                        codeBookSize = Integer.parseInt(scanner.nextLine());
-                        if (codeBookSize <= 0) {
-                            System.out.println("Invalid codebook size. Must be positive.");
+                    System.out.print("Enter training sample size in blocks (press Enter to train on all blocks): ");
+                    int sampleSize = 0;
+                    String sampleInput = scanner.nextLine();
+                    if (!sampleInput.isEmpty()) {
+                        try {
+                            sampleSize = Integer.parseInt(sampleInput);
+                            if (sampleSize <= 0) {
+                                System.out.println("Invalid sample size. Must be positive.");
+                                continue;
+                            }
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid sample size. Please enter a positive integer.");
                             continue;
                         }
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid codebook size. Please enter a positive integer.");
-                        continue;
                     }
 
-                    System.out.print("Enter output path for compressed data (e.g., assets\\compressed.txt): ");
+                    System.out.print("Use a tree-structured codebook (faster encoding, previews by depth)? (y/N): ");
+                    boolean treeStructured = scanner.nextLine().trim().equalsIgnoreCase("y");
+
+                    System.out.print("Enter output path for compressed data (e.g., assets\\compressed.vqc): ");
                     String compressedPath = scanner.nextLine();
-                    String codeBookPath = "assets\\codebook.ser";
+                    System.out.print("Entropy-code the indices? (y/N): ");
+                    CompressedImage.Coding coding = scanner.nextLine().trim().equalsIgnoreCase("y")
+                            ? CompressedImage.Coding.RANGE : CompressedImage.Coding.PACKED;
+
+                    PipelineMetrics metrics = new PipelineMetrics();
+                    metrics.register(PipelineMetrics.DEFAULT_OBJECT_NAME);
+                    LBGTrainer trainer = new LBGTrainer(ForkJoinPool.commonPool(), CodewordSearch.DEFAULT, metrics);
 
-                    List<int[]> blocks = divideIntoBlocks(grayImage, blockSize);
+                    PipelineListener.Timer timer = PipelineListener.Timer.start(metrics);
+                    BlockMatrix blocks = divideIntoBlocks(grayImage, blockSize);
+                    metrics.stage(PipelineListener.Stage.EXTRACT, timer.nanos(), blocks.size(), timer.bytes());
                     System.out.println("Total blocks: " + blocks.size());
                     if (blocks.isEmpty()) {
                         System.out.println("No blocks generated. Check image dimensions and block size.");
@@ -341,26 +636,59 @@ public class App {
                     }
 
                     for (int i = 0; i < Math.min(5, blocks.size()); i++) {
-                        System.out.println("Block " + i + ": " + Arrays.toString(blocks.get(i)));
+                        System.out.println("Block " + i + ": " + Arrays.toString(blocks.toVector(i)));
+                    }
+
+                    HashMap<String, double[]> codeBook;
+                    TreeCodeBook tree = null;
+                    if (treeStructured) {
+                        long start = System.nanoTime();
+                        tree = trainer.trainTree(blocks, codeBookSize, new Random(), TrainingOptions.sampled(sampleSize));
+                        codeBook = toCodeBook(tree.leaves(), codeBookSize);
+                        System.out.println("Trained a " + tree.getDepth() + "-level tree in "
+                                + (System.nanoTime() - start) / 1_000_000 + " ms");
+                    } else if (sampleSize > 0 && sampleSize < blocks.size()) {
+                        TrainingResult sampled = trainer.train(blocks, codeBookSize, new Random(),
+                                TrainingOptions.sampled(sampleSize).setMinRelativeImprovement(1e-4));
+                        codeBook = toCodeBook(sampled.getCentroids(), codeBookSize);
+                        System.out.println("Trained on " + sampled.getSampleSize() + " blocks in "
+                                + sampled.getTrainingMillis() + " ms (" + sampled.getIterations() + " iterations)");
+                        System.out.println("Training MSE (sample): " + sampled.getDistortion());
+                        System.out.println("Training MSE (all blocks): " + trainer.distortion(blocks, sampled.getCentroids()));
+
+                        System.out.print("Compare with training on all blocks? (y/N): ");
+                        if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                            TrainingResult full = trainer.train(blocks, codeBookSize, new Random(), TrainingOptions.full());
+                            double sampledMse = trainer.distortion(blocks, sampled.getCentroids());
+                            System.out.println("Full training: " + full.getTrainingMillis() + " ms, MSE " + full.getDistortion());
+                            System.out.println("MSE loss from sampling: " + (sampledMse - full.getDistortion()));
+                        }
+                    } else {
+                        codeBook = toCodeBook(trainer.train(blocks, codeBookSize, new Random()), codeBookSize);
                     }
 
-                    HashMap<String, double[]> codeBook = Create_Code_Book(blocks, codeBookSize);
-                    List<String> compressedBlocks = create_compressed_img(blocks, codeBook);
+                    timer = PipelineListener.Timer.start(metrics);
+                    List<String> compressedBlocks = tree != null
+                            ? create_compressed_img(blocks, codeBook, tree)
+                            : create_compressed_img(blocks, codeBook);
+                    metrics.stage(PipelineListener.Stage.ENCODE, timer.nanos(), blocks.size(), timer.bytes());
 
-                    saveCodeBook(codeBook, codeBookPath);
-                    saveCompressedBlocks(compressedBlocks, compressedPath);
+                    timer = PipelineListener.Timer.start(metrics);
+                    CompressedImage compressed = CompressedImage.of(grayImage.getWidth(), grayImage.getHeight(),
+                            blockSize, codeBook, compressedBlocks).withCoding(coding);
+                    compressed.write(Paths.get(compressedPath));
+                    metrics.stage(PipelineListener.Stage.WRITE, timer.nanos(), blocks.size(), timer.bytes());
 
-                    int keyLength = codeBook.isEmpty() ? 0 : codeBook.keySet().iterator().next().length();
                     int imgSize = Compute_img_size(grayImage, 8);
-                    int codeBookStorageSize = codeBookSize * blockSize * blockSize * 8;
-                    int compressedDataSize = compressedBlocks.size() * keyLength / 8;
-                    double compressionRatio = (double) imgSize / (compressedDataSize + codeBookStorageSize);
+                    int codeBookStorageSize = compressed.getCodeBook().length;
+                    long compressedDataSize = compressed.byteSize() - codeBookStorageSize;
+                    double compressionRatio = (double) imgSize / compressed.byteSize();
 
                     System.out.println("Image Size (bytes): " + imgSize);
                     System.out.println("Image size: " + grayImage.getWidth() + "x" + grayImage.getHeight());
                     System.out.println("Codebook Size (entries): " + Compute_CodeBook_size(codeBook));
                     System.out.println("Compressed Data Size (bytes): " + compressedDataSize);
-                    System.out.println("Codebook Storage Size (bytes, approx): " + codeBookStorageSize);
+                    System.out.println("Codebook Storage Size (bytes): " + codeBookStorageSize);
                     System.out.println("Compression Ratio: " + compressionRatio);
 
                     int count = 0;
@@ -371,59 +699,41 @@ public class App {
                         count++;
                     }
 
+                    System.out.println("Stage times (ms): " + metrics.getStageMillis());
+                    System.out.println("Blocks per second: " + metrics.getBlocksPerSecond());
+                    System.out.println("Refinement iterations: " + metrics.getIterations()
+                            + ", empty-cell reseeds: " + metrics.getReseeds());
+                    System.out.print("Enter path for metrics JSON (or press Enter to skip): ");
+                    String metricsPath = scanner.nextLine();
+                    if (!metricsPath.isEmpty()) {
+                        metrics.writeJson(Paths.get(metricsPath));
+                        System.out.println("Metrics saved to: " + metricsPath);
+                    }
+
                 } catch (IOException e) {
                     System.out.println("Error during compression: " + e.getMessage());
                 }
 
             } else if (choice == 2) {
                 try {
-                    System.out.print("Enter compressed data path (e.g., assets\\compressed.txt): ");
+                    System.out.print("Enter compressed data path (e.g., assets\\compressed.vqc): ");
                     String compressedPath = scanner.nextLine();
-                    String codeBookPath = "assets\\codebook.ser";
                     System.out.print("Enter output image path (e.g., assets\\reconstruct.bmp): ");
                     String outputImagePath = scanner.nextLine();
-                    System.out.print("Enter original image width: ");
-                    int imgWidth;
-                    try {
-                        imgWidth = Integer.parseInt(scanner.nextLine());
-                        if (imgWidth <= 0) {
-                            System.out.println("Invalid width. Must be positive.");
-                            continue;
-                        }
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid width. Please enter a positive integer.");
-                        continue;
-                    }
-                    System.out.print("Enter original image height: ");
-                    int imgHeight;
-                    try {
-                        imgHeight = Integer.parseInt(scanner.nextLine());
-                        if (imgHeight <= 0) {
-                            System.out.println("Invalid height. Must be positive.");
-                            continue;
-                        }
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid height. Please enter a positive integer.");
-                        continue;
-                    }
-                    System.out.print("Enter block size used during compression (e.g., 4 or 8): ");
-                    int blockSize;
-                    try {
-                        blockSize = Integer.parseInt(scanner.nextLine());
-                        if (blockSize <= 0 || blockSize > Math.min(imgWidth, imgHeight)) {
-                            System.out.println("Invalid block size. Must be positive and not exceed image dimensions.");
+
+                    CompressedImage compressed = CompressedImage.read(Paths.get(compressedPath));
+                    System.out.print("Preview depth in index bits, 0-" + compressed.getKeyLength()
+                            + " (press Enter for full quality): ");
+                    String depthInput = scanner.nextLine().trim();
+                    if (!depthInput.isEmpty()) {
+                        try {
+                            compressed = compressed.atDepth(Integer.parseInt(depthInput));
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid depth. Please enter a non-negative integer.");
                             continue;
                         }
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid block size. Please enter a positive integer.");
-                        continue;
                     }
-
-                    HashMap<String, double[]> codeBook = loadCodeBook(codeBookPath);
-                    List<String> compressedBlocks = loadCompressedBlocks(compressedPath);
-
-                    List<int[]> decompressedBlocks = Decompress(compressedBlocks, codeBook, blockSize * blockSize);
-                    BufferedImage reconstructedImage = reconstructImage(decompressedBlocks, imgWidth, imgHeight, blockSize);
+                    BufferedImage reconstructedImage = new TiledDecoder().decode(compressed);
 
                     ImageIO.write(reconstructedImage, "bmp", new File(outputImagePath));
                     System.out.println("Reconstructed image saved to: " + outputImagePath);
@@ -436,12 +746,118 @@ public class App {
                         System.out.println("Mean Squared Error (MSE): " + mse);
                     }
 
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException e) {
+                    System.out.println("Error during decompression: " + e.getMessage());
+                }
+
+            } else if (choice == 3) {
+                try {
+                    System.out.print("Enter input grayscale image path (e.g., assets\\girlgray.bmp): ");
+                    String inputImagePath = scanner.nextLine();
+                    System.out.print("Enter codebook source (.vqc file or codebook.ser): ");
+                    String codeBookPath = scanner.nextLine();
+                    System.out.print("Enter output path for compressed data (e.g., assets\\compressed.vqc): ");
+                    String compressedPath = scanner.nextLine();
+                    System.out.print("Entropy-code the indices? (y/N): ");
+                    CompressedImage.Coding coding = scanner.nextLine().trim().equalsIgnoreCase("y")
+                            ? CompressedImage.Coding.RANGE : CompressedImage.Coding.PACKED;
+
+                    double[][] centroids = loadCentroids(codeBookPath);
+                    if (centroids.length == 0) {
+                        System.out.println("Codebook is empty.");
+                        continue;
+                    }
+                    int blockSize = (int) Math.round(Math.sqrt(centroids[0].length));
+                    StreamingCodec.encode(Paths.get(inputImagePath), Paths.get(compressedPath), centroids, blockSize,
+                            coding);
+                    System.out.println("Compressed image saved to: " + compressedPath);
+
+                } catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
+                    System.out.println("Error during compression: " + e.getMessage());
+                }
+
+            } else if (choice == 4) {
+                try {
+                    System.out.print("Enter compressed data path (e.g., assets\\compressed.vqc): ");
+                    String compressedPath = scanner.nextLine();
+                    System.out.print("Enter output image path (e.g., assets\\reconstruct.bmp): ");
+                    String outputImagePath = scanner.nextLine();
+                    System.out.print("Enter region as x,y,width,height (press Enter for the whole image): ");
+                    String regionInput = scanner.nextLine().trim();
+                    if (regionInput.isEmpty()) {
+                        StreamingCodec.decode(Paths.get(compressedPath), Paths.get(outputImagePath));
+                    } else {
+                        String[] region = regionInput.split("\\s*,\\s*");
+                        try {
+                            if (region.length != 4) {
+                                throw new IllegalArgumentException("Expected four numbers");
+                            }
+                            BufferedImage crop = RegionDecoder.open(Paths.get(compressedPath)).decodeRegion(
+                                    Integer.parseInt(region[0]), Integer.parseInt(region[1]),
+                                    Integer.parseInt(region[2]), Integer.parseInt(region[3]));
+                            ImageIO.write(crop, "bmp", new File(outputImagePath));
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid region: " + e.getMessage());
+                            continue;
+                        }
+                    }
+                    System.out.println("Reconstructed image saved to: " + outputImagePath);
+
+                } catch (IOException e) {
+                    System.out.println("Error during decompression: " + e.getMessage());
+                }
+
+            } else if (choice == 5) {
+                try {
+                    System.out.print("Enter input color image path (e.g., assets\\girl.bmp): ");
+                    String inputImagePath = scanner.nextLine();
+                    BufferedImage colorImage = ImageIO.read(new File(inputImagePath));
+                    if (colorImage == null) {
+                        System.out.println("Unsupported image format: " + inputImagePath);
+                        continue;
+                    }
+                    System.out.print("Enter block size (e.g., 4 or 8 for 4x4 or 8x8 blocks): ");
+                    int blockSize = Integer.parseInt(scanner.nextLine());
+                    System.out.print("Enter codebook size (e.g., 64): ");
+                    int codeBookSize = Integer.parseInt(scanner.nextLine());
+                    if (blockSize <= 0 || codeBookSize <= 0) {
+                        System.out.println("Block size and codebook size must be positive.");
+                        continue;
+                    }
+                    System.out.print("Codebook per plane or joint YCbCr vectors? (p/j): ");
+                    ColorCompressedImage.Mode mode = scanner.nextLine().trim().equalsIgnoreCase("j")
+                            ? ColorCompressedImage.Mode.JOINT : ColorCompressedImage.Mode.PER_PLANE;
+                    System.out.print("Subsample chroma 4:2:0? (y/n): ");
+                    boolean subsample = scanner.nextLine().trim().equalsIgnoreCase("y");
+                    System.out.print("Enter output path for compressed data (e.g., assets\\compressed.vqcc): ");
+                    String compressedPath = scanner.nextLine();
+
+                    ColorCompressedImage compressed = ColorCompressedImage.compress(colorImage, blockSize,
+                            codeBookSize, mode, subsample);
+                    compressed.write(Paths.get(compressedPath));
+                    System.out.println("Compressed image saved to: " + compressedPath + " ("
+                            + compressed.byteSize() + " bytes)");
+
+                } catch (IOException | IllegalArgumentException e) {
+                    System.out.println("Error during compression: " + e.getMessage());
+                }
+
+            } else if (choice == 6) {
+                try {
+                    System.out.print("Enter compressed data path (e.g., assets\\compressed.vqcc): ");
+                    String compressedPath = scanner.nextLine();
+                    System.out.print("Enter output image path (e.g., assets\\reconstruct.bmp): ");
+                    String outputImagePath = scanner.nextLine();
+                    BufferedImage image = ColorCompressedImage.read(Paths.get(compressedPath)).decode();
+                    ImageIO.write(image, "bmp", new File(outputImagePath));
+                    System.out.println("Reconstructed image saved to: " + outputImagePath);
+
+                } catch (IOException e) {
                     System.out.println("Error during decompression: " + e.getMessage());
                 }
 
             } else {
-                System.out.println("Invalid option. Please choose 1, 2, or 3.");
+                System.out.println("Invalid option. Please choose 1-7.");
             }
         }
         scanner.close();
@@ -0,0 +1,281 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ * Compresses many images concurrently against one shared codebook.
+ *
+ * Work runs on a fixed-size pool with a bounded queue; when the queue is full
+ * the submitting thread encodes the image itself, which keeps memory bounded for
+ * very large batches. The codebook comes from a {@link CodeBookCache}: a pretrained
+ * codebook is loaded once, otherwise the first image of the batch trains it. It is
+ * resolved before any image is encoded, so a codebook that cannot be loaded or
+ * trained fails the whole batch at once.
+ */
+public class BatchCompressor {
+
+    /** Outcome for one input image. */
+    public static class Result {
+        private final Path input;
+        private final Path output;
+        private final double compressionRatio;
+        private final String error;
+
+        Result(Path input, Path output, double compressionRatio, String error) {
+            this.input = input;
+            this.output = output;
+            this.compressionRatio = compressionRatio;
+            this.error = error;
+        }
+
+        public Path getInput() {
+            return input;
+        }
+
+        public Path getOutput() {
+            return output;
+        }
+
+        public double getCompressionRatio() {
+            return compressionRatio;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final int threads;
+    private final CodeBookCache cache;
+    private CompressedImage.Coding coding = CompressedImage.Coding.PACKED;
+    private PipelineListener listener = PipelineListener.NONE;
+    private boolean warmStart;
+
+    public BatchCompressor(int threads, CodeBookCache cache) {
+        this.threads = threads;
+        this.cache = cache;
+    }
+
+    /** Index coding for the files written by {@link #compress}; fixed-width packing by default. */
+    public BatchCompressor setCoding(CompressedImage.Coding coding) {
+        this.coding = coding;
+        return this;
+    }
+
+    /**
+     * With a pretrained codebook, refines it on the first image instead of using it
+     * as is; see {@link App#Create_Code_Book(BlockMatrix, HashMap)}.
+     */
+    public BatchCompressor setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+        return this;
+    }
+
+    /** Receives per-image read, extract, encode and write times and the training events; may be called concurrently. */
+    public BatchCompressor setListener(PipelineListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /** Expands directories into the image files they contain, in name order. */
+    public static List<Path> collectInputs(List<Path> paths) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                List<Path> children = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*.{bmp,png,jpg,jpeg,gif}")) {
+                    for (Path child : stream) {
+                        children.add(child);
+                    }
+                }
+                children.sort(null);
+                inputs.addAll(children);
+            } else {
+                inputs.add(path);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Compresses every input into {@code outputDir} as {@code <name>.vqc}, or
+     * {@code <name>.<ext>.vqc} when two inputs share a base name. Inputs from
+     * different directories with the same file name get a numeric suffix, as in
+     * {@code <name>-2.vqc}, so no output overwrites another.
+     *
+     * @param pretrained codebook to reuse (a .vqc file or codebook.ser), or null to
+     *                   train one from the first image
+     * @throws IOException if the codebook cannot be loaded or trained, or does not
+     *                     match {@code blockSize}
+     */
+    public List<Result> compress(List<Path> inputs, Path outputDir, int blockSize, int codeBookSize, Path pretrained)
+            throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        if (inputs.isEmpty()) {
+            return new ArrayList<>();
+        }
+        double[][] centroids = codeBook(inputs.get(0), blockSize, codeBookSize, pretrained);
+        List<Path> outputs = outputPaths(inputs, outputDir);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+        List<Future<Result>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                Path input = inputs.get(i);
+                Path output = outputs.get(i);
+                futures.add(executor.submit(() -> compressOne(input, output, blockSize, centroids)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** One distinct output file per input, chosen before any work is submitted; see {@link #compress}. */
+    static List<Path> outputPaths(List<Path> inputs, Path outputDir) {
+        Map<String, Integer> baseNames = new HashMap<>();
+        for (Path input : inputs) {
+            baseNames.merge(baseName(input), 1, Integer::sum);
+        }
+        Set<String> taken = new HashSet<>();
+        List<Path> outputs = new ArrayList<>(inputs.size());
+        for (Path input : inputs) {
+            String name = baseNames.get(baseName(input)) > 1 ? input.getFileName().toString() : baseName(input);
+            String unique = name;
+            for (int suffix = 2; !taken.add(unique.toLowerCase(Locale.ROOT)); suffix++) {
+                unique = name + "-" + suffix;
+            }
+            outputs.add(outputDir.resolve(unique + ".vqc"));
+        }
+        return outputs;
+    }
+
+    private static String baseName(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Describes where the codebook for a batch comes from, for {@link CodeBookCache}
+     * keys. Files are identified by absolute path and modification time.
+     */
+    String codeBookSource(Path trainingImage, Path pretrained) throws IOException {
+        String trained = "trained:" + describe(trainingImage);
+        if (pretrained == null) {
+            return trained;
+        }
+        return "pretrained:" + describe(pretrained) + (warmStart ? "+" + trained : "");
+    }
+
+    /** Codebook size part of the cache key; a pretrained file used as is has its own size. */
+    int cachedSize(int codeBookSize, Path pretrained) {
+        return pretrained != null && !warmStart ? 0 : codeBookSize;
+    }
+
+    private static String describe(Path path) throws IOException {
+        return path.toAbsolutePath().normalize() + "@" + Files.getLastModifiedTime(path).toMillis();
+    }
+
+    private double[][] codeBook(Path trainingImage, int blockSize, int codeBookSize, Path pretrained)
+            throws IOException {
+        double[][] centroids;
+        try {
+            centroids = cache.get(blockSize, cachedSize(codeBookSize, pretrained),
+                    codeBookSource(trainingImage, pretrained),
+                    () -> pretrained == null ? train(trainingImage, blockSize, null, codeBookSize)
+                            : warmStart ? train(trainingImage, blockSize, App.loadCentroids(pretrained.toString()), codeBookSize)
+                            : App.loadCentroids(pretrained.toString()));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Cannot build codebook: " + (cause.getMessage() != null ? cause.getMessage()
+                    : cause.toString()), cause);
+        }
+        if (centroids.length == 0 || centroids[0].length != blockSize * blockSize) {
+            throw new IOException("Codebook does not match block size " + blockSize);
+        }
+        return centroids;
+    }
+
+    private Result compressOne(Path input, Path output, int blockSize, double[][] centroids) {
+        try {
+            PipelineListener.Timer timer = PipelineListener.Timer.start(listener);
+            BufferedImage image = ImageIO.read(input.toFile());
+            if (image == null) {
+                return new Result(input, null, 0, "Unsupported image format");
+            }
+            listener.stage(PipelineListener.Stage.READ, timer.nanos(), 0, timer.bytes());
+
+            timer = PipelineListener.Timer.start(listener);
+            BlockMatrix blocks = App.divideIntoBlocks(image, blockSize);
+            listener.stage(PipelineListener.Stage.EXTRACT, timer.nanos(), blocks.size(), timer.bytes());
+
+            timer = PipelineListener.Timer.start(listener);
+            CodewordSearch search = CodewordSearch.DEFAULT.build(centroids);
+            int[] indices = new int[blocks.size()];
+            for (int block = 0; block < indices.length; block++) {
+                indices[block] = search.nearest(blocks, block);
+            }
+            listener.stage(PipelineListener.Stage.ENCODE, timer.nanos(), blocks.size(), timer.bytes());
+
+            timer = PipelineListener.Timer.start(listener);
+            CompressedImage compressed = new CompressedImage(image.getWidth(), image.getHeight(), blockSize,
+                    App.keyLength(centroids.length), CompressedImage.quantizeCodeBook(centroids, blockSize * blockSize),
+                    indices, coding);
+            compressed.write(output);
+            listener.stage(PipelineListener.Stage.WRITE, timer.nanos(), blocks.size(), timer.bytes());
+            double ratio = (double) App.Compute_img_size(image, 8) / compressed.byteSize();
+            return new Result(input, output, ratio, null);
+        } catch (IOException | RuntimeException e) {
+            return new Result(input, null, 0, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    /** Trains on {@code image} from scratch, or refines {@code initial} on it when given. */
+    private double[][] train(Path image, int blockSize, double[][] initial, int codeBookSize) throws IOException {
+        BufferedImage trainingImage = ImageIO.read(new File(image.toString()));
+        if (trainingImage == null) {
+            throw new IOException("Unsupported image format: " + image);
+        }
+        LBGTrainer trainer = new LBGTrainer(ForkJoinPool.commonPool(), CodewordSearch.DEFAULT, listener);
+        BlockMatrix blocks = App.divideIntoBlocks(trainingImage, blockSize);
+        if (initial != null) {
+            return trainer.warmStart(blocks, initial, new Random(),
+                    TrainingOptions.full().setMinRelativeImprovement(App.WARM_START_MIN_IMPROVEMENT)).getCentroids();
+        }
+        return trainer.train(blocks, codeBookSize, new Random());
+    }
+}
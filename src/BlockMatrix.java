@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flat store for image blocks: block {@code b} occupies
+ * {@code data[b * dim .. b * dim + dim)} as unsigned 8-bit pixels, so a block
+ * costs blockSize * blockSize bytes and distance loops read memory sequentially.
+ */
+public class BlockMatrix {
+
+    private final byte[] data;
+    private final int count;
+    private final int dim;
+
+    public BlockMatrix(int count, int dim) {
+        this(new byte[Math.multiplyExact(count, dim)], count, dim);
+    }
+
+    public BlockMatrix(byte[] data, int count, int dim) {
+        if (data.length < (long) count * dim) {
+            throw new IllegalArgumentException("Block data too short for " + count + " blocks of " + dim + " pixels");
+        }
+        this.data = data;
+        this.count = count;
+        this.dim = dim;
+    }
+
+    /** Copies {@code List<int[]>} blocks; every value must be a pixel in the 0-255 range. */
+    public static BlockMatrix fromList(List<int[]> blocks) {
+        if (blocks == null || blocks.isEmpty()) {
+            return new BlockMatrix(0, 0);
+        }
+        int dim = blocks.get(0).length;
+        BlockMatrix matrix = new BlockMatrix(blocks.size(), dim);
+        for (int b = 0; b < blocks.size(); b++) {
+            int[] block = blocks.get(b);
+            for (int i = 0; i < dim; i++) {
+                matrix.set(b, i, block[i]);
+            }
+        }
+        return matrix;
+    }
+
+    /** Cuts a row-major 8-bit plane into blocks in scan order, dropping partial blocks at the edges. */
+    public static BlockMatrix fromPlane(byte[] plane, int width, int height, int blockSize) {
+        int blocksPerRow = width / blockSize;
+        int blocksPerColumn = height / blockSize;
+        BlockMatrix blocks = new BlockMatrix(blocksPerRow * blocksPerColumn, blockSize * blockSize);
+        int index = 0;
+        for (int y = 0; y <= height - blockSize; y += blockSize) {
+            for (int x = 0; x <= width - blockSize; x += blockSize) {
+                for (int dy = 0; dy < blockSize; dy++) {
+                    System.arraycopy(plane, (y + dy) * width + x, blocks.data, index, blockSize);
+                    index += blockSize;
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /** Inverse of {@link #fromPlane}: writes the blocks back into a row-major plane. */
+    public void copyToPlane(byte[] plane, int width, int height, int blockSize) {
+        int block = 0;
+        for (int y = 0; y <= height - blockSize && block < count; y += blockSize) {
+            for (int x = 0; x <= width - blockSize && block < count; x += blockSize) {
+                int offset = block * dim;
+                for (int dy = 0; dy < blockSize; dy++) {
+                    System.arraycopy(data, offset + dy * blockSize, plane, (y + dy) * width + x, blockSize);
+                }
+                block++;
+            }
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int dim() {
+        return dim;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public int offset(int block) {
+        return block * dim;
+    }
+
+    public int get(int block, int i) {
+        return data[block * dim + i] & 0xFF;
+    }
+
+    /** Stores a pixel; values outside the 0-255 range are rejected rather than wrapped. */
+    public void set(int block, int i, int value) {
+        if (value < 0 || value > 255) {
+            throw new IllegalArgumentException("Pixel " + i + " of block " + block + " is " + value
+                    + ", outside the 0-255 range");
+        }
+        data[block * dim + i] = (byte) value;
+    }
+
+    public int[] toVector(int block) {
+        int[] vector = new int[dim];
+        int offset = block * dim;
+        for (int i = 0; i < dim; i++) {
+            vector[i] = data[offset + i] & 0xFF;
+        }
+        return vector;
+    }
+
+    public List<int[]> toList() {
+        List<int[]> blocks = new ArrayList<>(count);
+        for (int b = 0; b < count; b++) {
+            blocks.add(toVector(b));
+        }
+        return blocks;
+    }
+}
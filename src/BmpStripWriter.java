@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes an 8-bit grayscale BMP strip by strip. The bitmap is stored top-down
+ * (negative height) so rows can be appended in the order they are decoded.
+ *
+ * Incoming pixels are gray levels as read through {@code getRGB}, like every other
+ * stage of the pipeline. They are stored through the same conversion
+ * {@code setRGB} applies to a {@code TYPE_BYTE_GRAY} image, so the file matches
+ * what {@code ImageIO.write} produces for {@link App#reconstructImage}.
+ */
+public class BmpStripWriter implements StreamingCodec.StripSink, AutoCloseable {
+
+    private static final int FILE_HEADER_SIZE = 14;
+    private static final int INFO_HEADER_SIZE = 40;
+    private static final int PALETTE_SIZE = 256 * 4;
+
+    private final FileChannel channel;
+    private int width;
+    private int stride;
+
+    public BmpStripWriter(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void begin(int width, int height) throws IOException {
+        this.width = width;
+        this.stride = (width + 3) & ~3;
+        int dataOffset = FILE_HEADER_SIZE + INFO_HEADER_SIZE + PALETTE_SIZE;
+        int imageSize = stride * height;
+        ByteBuffer header = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'B').put((byte) 'M')
+                .putInt(dataOffset + imageSize)
+                .putInt(0)
+                .putInt(dataOffset);
+        header.putInt(INFO_HEADER_SIZE)
+                .putInt(width)
+                .putInt(-height)
+                .putShort((short) 1)
+                .putShort((short) 8)
+                .putInt(0)
+                .putInt(imageSize)
+                .putInt(2835)
+                .putInt(2835)
+                .putInt(256)
+                .putInt(0);
+        for (int i = 0; i < 256; i++) {
+            header.put((byte) i).put((byte) i).put((byte) i).put((byte) 0);
+        }
+        header.flip();
+        CompressedImage.writeFully(channel, header);
+    }
+
+    @Override
+    public void strip(int y, byte[] pixels, int rows) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(stride * rows);
+        for (int row = 0; row < rows; row++) {
+            for (int x = row * width, end = x + width; x < end; x++) {
+                out.put(GrayRaster.GRAY_TO_SAMPLE[pixels[x] & 0xFF]);
+            }
+            out.position((row + 1) * stride);
+        }
+        out.flip();
+        CompressedImage.writeFully(channel, out);
+    }
+
+    @Override
+    public void end() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
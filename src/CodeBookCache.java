@@ -0,0 +1,88 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Least-recently-used cache of codebooks keyed by block size, codebook size and
+ * source. The source names what the codebook was made from, such as a pretrained
+ * file and its modification time or the image it was trained on, so a cache reused
+ * across batches never hands out a codebook built from different data.
+ * Concurrent requests for a missing key share one load: the first caller runs the
+ * loader and the others wait for its result. A failed load is not cached.
+ *
+ * This is an API-level cache: it pays off when one process runs several batches
+ * through {@link BatchCompressor} with the same cache. A single command-line batch
+ * resolves exactly one codebook and holds it in a cache of capacity 1.
+ */
+public class CodeBookCache {
+
+    private final Map<String, FutureTask<double[][]>> entries;
+
+    public CodeBookCache(int capacity) {
+        this.entries = new LinkedHashMap<String, FutureTask<double[][]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<double[][]>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param codeBookSize requested size, or 0 when the source alone fixes it, as for
+     *                     a pretrained file used as is
+     */
+    public double[][] get(int blockSize, int codeBookSize, String source, Callable<double[][]> loader)
+            throws ExecutionException {
+        String key = key(blockSize, codeBookSize, source);
+        FutureTask<double[][]> task;
+        boolean owner = false;
+        synchronized (entries) {
+            task = entries.get(key);
+            if (task == null) {
+                task = new FutureTask<>(loader);
+                entries.put(key, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (ExecutionException e) {
+            synchronized (entries) {
+                entries.remove(key, task);
+            }
+            throw e;
+        }
+    }
+
+    public void put(int blockSize, int codeBookSize, String source, double[][] centroids) {
+        FutureTask<double[][]> task = new FutureTask<>(() -> centroids);
+        task.run();
+        synchronized (entries) {
+            entries.put(key(blockSize, codeBookSize, source), task);
+        }
+    }
+
+    public void invalidate(int blockSize, int codeBookSize, String source) {
+        synchronized (entries) {
+            entries.remove(key(blockSize, codeBookSize, source));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static String key(int blockSize, int codeBookSize, String source) {
+        return blockSize + "x" + codeBookSize + "@" + source;
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * Nearest-codeword lookup built once per codebook and shared by encoding and
+ * training. Implementations return the same codeword as a linear scan over
+ * {@link App#Compute_Distance} in codeword order: the smallest distance wins and
+ * ties go to the lowest index. Instances are immutable and thread-safe.
+ */
+public interface CodewordSearch {
+
+    /** Returns the index of the codeword closest to {@code block}, or -1 if there are none. */
+    int nearest(BlockMatrix blocks, int block);
+
+    interface Factory {
+        CodewordSearch build(double[][] codewords);
+    }
+
+    Factory LINEAR = LinearCodewordSearch::new;
+    Factory NORM_ORDERED = NormOrderedCodewordSearch::new;
+    Factory DEFAULT = NORM_ORDERED;
+}
@@ -0,0 +1,365 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Colour vector quantization in YCbCr.
+ *
+ * The image is split into a luma plane and two chroma planes, optionally 2x2
+ * subsampled (4:2:0). {@link Mode#PER_PLANE} trains and encodes one codebook per
+ * plane, with the three planes running concurrently. {@link Mode#JOINT} trains a
+ * single codebook on vectors that concatenate a luma block with the chroma blocks
+ * covering the same area.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   magic       4 bytes  "VQCC"
+ *   version     1 byte
+ *   mode        1 byte   0 = per plane, 1 = joint
+ *   subsampled  1 byte
+ *   width       int
+ *   height      int
+ *   PER_PLANE:  Y, Cb, Cr as three {@link CompressedImage} containers
+ *   JOINT:      Y {@link CompressedImage} (luma half of the codebook and the indices),
+ *               chroma block size int, then the chroma half of each codeword (Cb then Cr)
+ * </pre>
+ */
+public class ColorCompressedImage {
+
+    public enum Mode {
+        PER_PLANE,
+        JOINT
+    }
+
+    public static final int MAGIC = 0x56514343;
+    public static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 1 + 4 + 4;
+
+    private final Mode mode;
+    private final boolean subsampled;
+    private final int width;
+    private final int height;
+    private final CompressedImage luma;
+    private final CompressedImage cb;
+    private final CompressedImage cr;
+    private final int chromaBlockSize;
+    private final byte[] chromaCodeBook;
+
+    private ColorCompressedImage(Mode mode, boolean subsampled, int width, int height, CompressedImage luma,
+                                 CompressedImage cb, CompressedImage cr, int chromaBlockSize, byte[] chromaCodeBook) {
+        this.mode = mode;
+        this.subsampled = subsampled;
+        this.width = width;
+        this.height = height;
+        this.luma = luma;
+        this.cb = cb;
+        this.cr = cr;
+        this.chromaBlockSize = chromaBlockSize;
+        this.chromaCodeBook = chromaCodeBook;
+    }
+
+    public static ColorCompressedImage compress(BufferedImage image, int blockSize, int codeBookSize,
+                                                Mode mode, boolean subsample) {
+        if (mode == Mode.JOINT && subsample && blockSize % 2 != 0) {
+            throw new IllegalArgumentException("Joint mode with chroma subsampling needs an even block size");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int chromaWidth = subsample ? (width + 1) / 2 : width;
+        int chromaHeight = subsample ? (height + 1) / 2 : height;
+        if (blockSize <= 0 || blockSize > Math.min(width, height)) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + Math.min(width, height));
+        }
+        if (mode == Mode.PER_PLANE && blockSize > Math.min(chromaWidth, chromaHeight)) {
+            throw new IllegalArgumentException("Block size " + blockSize + " does not fit the " + chromaWidth + "x"
+                    + chromaHeight + " chroma planes");
+        }
+        byte[][] planes = toYCbCr(image, subsample);
+
+        if (mode == Mode.PER_PLANE) {
+            CompletableFuture<CompressedImage> y = CompletableFuture.supplyAsync(
+                    () -> encodePlane(planes[0], width, height, blockSize, codeBookSize));
+            CompletableFuture<CompressedImage> cb = CompletableFuture.supplyAsync(
+                    () -> encodePlane(planes[1], chromaWidth, chromaHeight, blockSize, codeBookSize));
+            CompletableFuture<CompressedImage> cr = CompletableFuture.supplyAsync(
+                    () -> encodePlane(planes[2], chromaWidth, chromaHeight, blockSize, codeBookSize));
+            return new ColorCompressedImage(mode, subsample, width, height, join(y), join(cb), join(cr), 0, null);
+        }
+
+        int chromaBlockSize = subsample ? blockSize / 2 : blockSize;
+        int lumaDim = blockSize * blockSize;
+        int chromaDim = chromaBlockSize * chromaBlockSize;
+        BlockMatrix lumaBlocks = BlockMatrix.fromPlane(planes[0], width, height, blockSize);
+        BlockMatrix vectors = new BlockMatrix(lumaBlocks.size(), lumaDim + 2 * chromaDim);
+        int blocksPerRow = width / blockSize;
+        for (int block = 0; block < lumaBlocks.size(); block++) {
+            int offset = vectors.offset(block);
+            System.arraycopy(lumaBlocks.data(), lumaBlocks.offset(block), vectors.data(), offset, lumaDim);
+            int cx = (block % blocksPerRow) * chromaBlockSize;
+            int cy = (block / blocksPerRow) * chromaBlockSize;
+            for (int dy = 0; dy < chromaBlockSize; dy++) {
+                int src = (cy + dy) * chromaWidth + cx;
+                System.arraycopy(planes[1], src, vectors.data(), offset + lumaDim + dy * chromaBlockSize, chromaBlockSize);
+                System.arraycopy(planes[2], src, vectors.data(), offset + lumaDim + chromaDim + dy * chromaBlockSize,
+                        chromaBlockSize);
+            }
+        }
+        double[][] centroids = new LBGTrainer().train(vectors, codeBookSize, new Random());
+        int[] indices = nearest(vectors, centroids);
+        byte[] joint = CompressedImage.quantizeCodeBook(centroids, vectors.dim());
+        byte[] lumaCodeBook = new byte[centroids.length * lumaDim];
+        byte[] chromaCodeBook = new byte[centroids.length * 2 * chromaDim];
+        for (int c = 0; c < centroids.length; c++) {
+            System.arraycopy(joint, c * vectors.dim(), lumaCodeBook, c * lumaDim, lumaDim);
+            System.arraycopy(joint, c * vectors.dim() + lumaDim, chromaCodeBook, c * 2 * chromaDim, 2 * chromaDim);
+        }
+        CompressedImage luma = new CompressedImage(width, height, blockSize, App.keyLength(centroids.length),
+                lumaCodeBook, indices);
+        return new ColorCompressedImage(mode, subsample, width, height, luma, null, null, chromaBlockSize, chromaCodeBook);
+    }
+
+    private static CompressedImage encodePlane(byte[] plane, int width, int height, int blockSize, int codeBookSize) {
+        BlockMatrix blocks = BlockMatrix.fromPlane(plane, width, height, blockSize);
+        double[][] centroids = new LBGTrainer().train(blocks, codeBookSize, new Random());
+        return new CompressedImage(width, height, blockSize, App.keyLength(centroids.length),
+                CompressedImage.quantizeCodeBook(centroids, blockSize * blockSize), nearest(blocks, centroids));
+    }
+
+    private static int[] nearest(BlockMatrix blocks, double[][] centroids) {
+        int[] indices = new int[blocks.size()];
+        if (centroids.length == 0) {
+            return indices;
+        }
+        CodewordSearch search = CodewordSearch.DEFAULT.build(centroids);
+        for (int block = 0; block < indices.length; block++) {
+            indices[block] = search.nearest(blocks, block);
+        }
+        return indices;
+    }
+
+    private static CompressedImage join(CompletableFuture<CompressedImage> plane) {
+        try {
+            return plane.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public BufferedImage decode() {
+        int chromaWidth = subsampled ? (width + 1) / 2 : width;
+        int chromaHeight = subsampled ? (height + 1) / 2 : height;
+        byte[] y = new byte[width * height];
+        byte[] cbPlane = new byte[chromaWidth * chromaHeight];
+        byte[] crPlane = new byte[chromaWidth * chromaHeight];
+        // Areas not covered by whole blocks decode as black, like the gray pipeline.
+        Arrays.fill(cbPlane, (byte) 128);
+        Arrays.fill(crPlane, (byte) 128);
+        int blockSize = luma.getBlockSize();
+        luma.decode().copyToPlane(y, width, height, blockSize);
+
+        if (mode == Mode.PER_PLANE) {
+            cb.decode().copyToPlane(cbPlane, chromaWidth, chromaHeight, cb.getBlockSize());
+            cr.decode().copyToPlane(crPlane, chromaWidth, chromaHeight, cr.getBlockSize());
+        } else {
+            int chromaDim = chromaBlockSize * chromaBlockSize;
+            int codeBookSize = chromaDim == 0 ? 0 : chromaCodeBook.length / (2 * chromaDim);
+            int blocksPerRow = width / blockSize;
+            int[] indices = luma.getIndices();
+            for (int block = 0; block < indices.length; block++) {
+                if (indices[block] >= codeBookSize) {
+                    continue;
+                }
+                int src = indices[block] * 2 * chromaDim;
+                int cx = (block % blocksPerRow) * chromaBlockSize;
+                int cy = (block / blocksPerRow) * chromaBlockSize;
+                for (int dy = 0; dy < chromaBlockSize; dy++) {
+                    int dst = (cy + dy) * chromaWidth + cx;
+                    System.arraycopy(chromaCodeBook, src + dy * chromaBlockSize, cbPlane, dst, chromaBlockSize);
+                    System.arraycopy(chromaCodeBook, src + chromaDim + dy * chromaBlockSize, crPlane, dst,
+                            chromaBlockSize);
+                }
+            }
+        }
+        return toRGB(y, cbPlane, crPlane, width, height, subsampled);
+    }
+
+    public long byteSize() {
+        long size = HEADER_SIZE + luma.byteSize();
+        if (mode == Mode.PER_PLANE) {
+            return size + cb.byteSize() + cr.byteSize();
+        }
+        return size + 4 + chromaCodeBook.length;
+    }
+
+    public void write(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC)
+                    .put(VERSION)
+                    .put((byte) mode.ordinal())
+                    .put((byte) (subsampled ? 1 : 0))
+                    .putInt(width)
+                    .putInt(height)
+                    .flip();
+            CompressedImage.writeFully(channel, header);
+            luma.write(channel);
+            if (mode == Mode.PER_PLANE) {
+                cb.write(channel);
+                cr.write(channel);
+            } else {
+                ByteBuffer chroma = ByteBuffer.allocate(4 + chromaCodeBook.length);
+                chroma.putInt(chromaBlockSize).put(chromaCodeBook).flip();
+                CompressedImage.writeFully(channel, chroma);
+            }
+        }
+    }
+
+    public static ColorCompressedImage read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a colour compressed image: " + path);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            CompressedImage.readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a colour compressed image: " + path);
+            }
+            byte version = header.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported colour compressed image version " + version + ": " + path);
+            }
+            int modeIndex = header.get();
+            if (modeIndex < 0 || modeIndex >= Mode.values().length) {
+                throw new IOException("Unknown colour mode " + modeIndex + ": " + path);
+            }
+            Mode mode = Mode.values()[modeIndex];
+            boolean subsampled = header.get() != 0;
+            int width = header.getInt();
+            int height = header.getInt();
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Invalid image size " + width + "x" + height + ": " + path);
+            }
+            int chromaWidth = subsampled ? (width + 1) / 2 : width;
+            int chromaHeight = subsampled ? (height + 1) / 2 : height;
+            CompressedImage luma = CompressedImage.read(channel, path);
+            checkPlane(luma, "Luma", width, height, luma.getBlockSize(), path);
+            if (mode == Mode.PER_PLANE) {
+                CompressedImage cb = CompressedImage.read(channel, path);
+                checkPlane(cb, "Cb", chromaWidth, chromaHeight, luma.getBlockSize(), path);
+                CompressedImage cr = CompressedImage.read(channel, path);
+                checkPlane(cr, "Cr", chromaWidth, chromaHeight, luma.getBlockSize(), path);
+                return new ColorCompressedImage(mode, subsampled, width, height, luma, cb, cr, 0, null);
+            }
+            ByteBuffer chromaHeader = ByteBuffer.allocate(4);
+            CompressedImage.readFully(channel, chromaHeader);
+            int chromaBlockSize = chromaHeader.getInt(0);
+            // compress() derives the chroma block from the luma block, so anything else is corrupt.
+            int expectedChromaBlockSize = subsampled ? luma.getBlockSize() / 2 : luma.getBlockSize();
+            if (chromaBlockSize <= 0 || chromaBlockSize != expectedChromaBlockSize) {
+                throw new IOException("Chroma block size " + chromaBlockSize + " does not match luma block size "
+                        + luma.getBlockSize() + (subsampled ? " with subsampling" : "") + ": " + path);
+            }
+            long chromaLength = (long) luma.getCodeBookSize() * 2 * chromaBlockSize * chromaBlockSize;
+            if (channel.size() - channel.position() < chromaLength) {
+                throw new IOException("Truncated colour compressed image: " + path);
+            }
+            ByteBuffer chroma = ByteBuffer.allocate(Math.toIntExact(chromaLength));
+            CompressedImage.readFully(channel, chroma);
+            return new ColorCompressedImage(mode, subsampled, width, height, luma, null, null, chromaBlockSize,
+                    chroma.array());
+        }
+    }
+
+    /** Rejects a plane container whose size or block size disagrees with the colour header. */
+    private static void checkPlane(CompressedImage plane, String name, int width, int height, int blockSize, Path path)
+            throws IOException {
+        if (plane.getWidth() != width || plane.getHeight() != height || plane.getBlockSize() != blockSize) {
+            throw new IOException(name + " plane is " + plane.getWidth() + "x" + plane.getHeight() + " with block size "
+                    + plane.getBlockSize() + ", expected " + width + "x" + height + " with block size " + blockSize
+                    + ": " + path);
+        }
+    }
+
+    /** Full-range BT.601 (JPEG) conversion; chroma is averaged over 2x2 pixels when subsampling. */
+    static byte[][] toYCbCr(BufferedImage image, boolean subsample) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int chromaWidth = subsample ? (width + 1) / 2 : width;
+        int chromaHeight = subsample ? (height + 1) / 2 : height;
+        byte[] y = new byte[width * height];
+        int[] cbSum = new int[chromaWidth * chromaHeight];
+        int[] crSum = new int[chromaWidth * chromaHeight];
+        int[] cellCount = new int[chromaWidth * chromaHeight];
+        int[] row = new int[width];
+        for (int py = 0; py < height; py++) {
+            image.getRGB(0, py, width, 1, row, 0, width);
+            int chromaRow = (subsample ? py / 2 : py) * chromaWidth;
+            for (int px = 0; px < width; px++) {
+                int r = (row[px] >> 16) & 0xFF;
+                int g = (row[px] >> 8) & 0xFF;
+                int b = row[px] & 0xFF;
+                y[py * width + px] = clamp(0.299 * r + 0.587 * g + 0.114 * b);
+                int cell = chromaRow + (subsample ? px / 2 : px);
+                cbSum[cell] += clamp(128 - 0.168736 * r - 0.331264 * g + 0.5 * b) & 0xFF;
+                crSum[cell] += clamp(128 + 0.5 * r - 0.418688 * g - 0.081312 * b) & 0xFF;
+                cellCount[cell]++;
+            }
+        }
+        byte[] cb = new byte[cbSum.length];
+        byte[] cr = new byte[crSum.length];
+        for (int i = 0; i < cb.length; i++) {
+            cb[i] = (byte) ((cbSum[i] + cellCount[i] / 2) / cellCount[i]);
+            cr[i] = (byte) ((crSum[i] + cellCount[i] / 2) / cellCount[i]);
+        }
+        return new byte[][]{y, cb, cr};
+    }
+
+    static BufferedImage toRGB(byte[] y, byte[] cb, byte[] cr, int width, int height, boolean subsampled) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int chromaWidth = subsampled ? (width + 1) / 2 : width;
+        for (int py = 0; py < height; py++) {
+            int chromaRow = (subsampled ? py / 2 : py) * chromaWidth;
+            for (int px = 0; px < width; px++) {
+                int cell = chromaRow + (subsampled ? px / 2 : px);
+                double luma = y[py * width + px] & 0xFF;
+                double blue = (cb[cell] & 0xFF) - 128;
+                double red = (cr[cell] & 0xFF) - 128;
+                int r = clamp(luma + 1.402 * red) & 0xFF;
+                int g = clamp(luma - 0.344136 * blue - 0.714136 * red) & 0xFF;
+                int b = clamp(luma + 1.772 * blue) & 0xFF;
+                pixels[py * width + px] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return image;
+    }
+
+    private static byte clamp(double value) {
+        return (byte) Math.max(0, Math.min(255, (int) Math.round(value)));
+    }
+}
@@ -0,0 +1,591 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Single-file container for a compressed image.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   magic        4 bytes  "VQIC"
+ *   version      1 byte
+ *   width        int
+ *   height       int
+ *   blockSize    int
+ *   codeBookSize int      number of codewords
+ *   keyLength    1 byte   bits per index
+ *   blockCount   int
+ *   coding       1 byte   {@link Coding} ordinal (version 2 only)
+ *   indexLength  long     bytes of index data (version 2 only)
+ *   codebook     codeBookSize * blockSize * blockSize bytes, each centroid rounded to 0-255
+ *   indices      PACKED: blockCount * keyLength bits, MSB first, padded to a whole byte
+ *                RANGE:  {@link RangeIndexCoder} stream, for keyLength up to {@link RangeIndexCoder#MAX_BITS}
+ * </pre>
+ * Centroids are stored exactly as {@link App#Decompress} would render them, so
+ * quantizing the codebook does not change the reconstructed image. Version 1
+ * files, which have no coding fields and always pack their indices, are still read.
+ */
+public class CompressedImage {
+
+    public static final int MAGIC = 0x56514943;
+    public static final byte VERSION = 2;
+    static final int HEADER_SIZE_V1 = 4 + 1 + 4 + 4 + 4 + 4 + 1 + 4;
+    static final int HEADER_SIZE = HEADER_SIZE_V1 + 1 + 8;
+
+    /** How the index stream is stored. */
+    public enum Coding {
+        /** Fixed-width codes of keyLength bits. */
+        PACKED,
+        /** Adaptive range coding with run modelling, see {@link RangeIndexCoder}. */
+        RANGE
+    }
+
+    private final int width;
+    private final int height;
+    private final int blockSize;
+    private final int keyLength;
+    private final byte[] codeBook;
+    private final int[] indices;
+    private final Coding coding;
+    private byte[] codedIndices;
+
+    public CompressedImage(int width, int height, int blockSize, int keyLength, byte[] codeBook, int[] indices) {
+        this(width, height, blockSize, keyLength, codeBook, indices, Coding.PACKED);
+    }
+
+    public CompressedImage(int width, int height, int blockSize, int keyLength, byte[] codeBook, int[] indices,
+                           Coding coding) {
+        this.width = width;
+        this.height = height;
+        this.blockSize = blockSize;
+        this.keyLength = keyLength;
+        this.codeBook = codeBook;
+        this.indices = indices;
+        this.coding = coding;
+    }
+
+    /** Builds a container from a codebook keyed by binary code and the block codes chosen for it. */
+    public static CompressedImage of(int width, int height, int blockSize,
+                                     HashMap<String, double[]> codeBook, List<String> compressedBlocks) {
+        int keyLength = codeBook.isEmpty() ? 0 : codeBook.keySet().iterator().next().length();
+        int[] indices = new int[compressedBlocks.size()];
+        for (int i = 0; i < indices.length; i++) {
+            String code = compressedBlocks.get(i);
+            indices[i] = code.isEmpty() ? 0 : Integer.parseInt(code, 2);
+        }
+        return new CompressedImage(width, height, blockSize, keyLength,
+                quantizeCodeBook(App.toCentroids(codeBook), blockSize * blockSize), indices);
+    }
+
+    public static byte[] quantizeCodeBook(double[][] centroids, int dim) {
+        byte[] table = new byte[centroids.length * dim];
+        for (int c = 0; c < centroids.length; c++) {
+            for (int i = 0; i < Math.min(dim, centroids[c].length); i++) {
+                table[c * dim + i] = (byte) Math.max(0, Math.min(255, Math.round(centroids[c][i])));
+            }
+        }
+        return table;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public int getCodeBookSize() {
+        int dim = blockSize * blockSize;
+        return dim == 0 ? 0 : codeBook.length / dim;
+    }
+
+    /** Quantized codebook, {@code blockSize * blockSize} bytes per codeword. */
+    public byte[] getCodeBook() {
+        return codeBook;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public Coding getCoding() {
+        return coding;
+    }
+
+    /** The same image with its indices stored using {@code coding}. */
+    public CompressedImage withCoding(Coding coding) {
+        return coding == this.coding ? this
+                : new CompressedImage(width, height, blockSize, keyLength, codeBook, indices, coding);
+    }
+
+    /** Looks every index up in the quantized codebook. Unknown indices decode to black blocks. */
+    public BlockMatrix decode() {
+        int dim = blockSize * blockSize;
+        BlockMatrix blocks = new BlockMatrix(indices.length, dim);
+        int codeBookSize = getCodeBookSize();
+        for (int b = 0; b < indices.length; b++) {
+            if (indices[b] < codeBookSize) {
+                System.arraycopy(codeBook, indices[b] * dim, blocks.data(), b * dim, dim);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Coarser copy of this image for progressive previews. Every index is cut to its
+     * top {@code depth} bits, and the codeword for each prefix is the mean of the
+     * codewords that share it, weighted by how often this image uses them. With a
+     * {@link TreeCodeBook} the prefixes are the tree's ancestors. LBG codebooks keep
+     * the split order in their indices too, so they coarsen the same way, if less
+     * cleanly.
+     */
+    public CompressedImage atDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth must not be negative");
+        }
+        if (depth >= keyLength) {
+            return this;
+        }
+        int dim = blockSize * blockSize;
+        int size = getCodeBookSize();
+        int shift = keyLength - depth;
+        long[] counts = new long[size];
+        for (int index : indices) {
+            if (index < size) {
+                counts[index]++;
+            }
+        }
+        double[][] sums = new double[1 << depth][dim];
+        long[] totals = new long[1 << depth];
+        for (int c = 0; c < size; c++) {
+            int prefix = c >>> shift;
+            for (int i = 0; i < dim; i++) {
+                sums[prefix][i] += counts[c] * (double) (codeBook[c * dim + i] & 0xFF);
+            }
+            totals[prefix] += counts[c];
+        }
+        for (int c = 0; c < size; c++) {
+            int prefix = c >>> shift;
+            if (totals[prefix] == 0) {
+                // Prefix unused by this image: fall back to the plain mean of its codewords.
+                int members = Math.min(size, (prefix + 1) << shift) - (prefix << shift);
+                for (int i = 0; i < dim; i++) {
+                    sums[prefix][i] += (double) (codeBook[c * dim + i] & 0xFF) / members;
+                }
+            }
+        }
+        for (int prefix = 0; prefix < sums.length; prefix++) {
+            for (int i = 0; totals[prefix] > 0 && i < dim; i++) {
+                sums[prefix][i] /= totals[prefix];
+            }
+        }
+        int[] coarse = new int[indices.length];
+        for (int b = 0; b < coarse.length; b++) {
+            coarse[b] = indices[b] < size ? indices[b] >>> shift : 1 << depth;
+        }
+        return new CompressedImage(width, height, blockSize, depth, quantizeCodeBook(sums, dim), coarse, coding);
+    }
+
+    public long byteSize() {
+        return HEADER_SIZE + codeBook.length + codedIndices().length;
+    }
+
+    private byte[] codedIndices() {
+        if (codedIndices == null) {
+            codedIndices = coding == Coding.RANGE
+                    ? RangeIndexCoder.encode(indices, keyLength, blocksPerRow(width, blockSize))
+                    : pack(indices, keyLength);
+        }
+        return codedIndices;
+    }
+
+    public void write(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(channel);
+        }
+    }
+
+    /** Writes the container at the channel's current position. */
+    public void write(FileChannel channel) throws IOException {
+        Header.checkCoding(coding, keyLength);
+        byte[] coded = codedIndices();
+        new Header(width, height, blockSize, getCodeBookSize(), keyLength, indices.length, coding, coded.length)
+                .write(channel);
+        writeFully(channel, ByteBuffer.wrap(codeBook));
+        writeFully(channel, ByteBuffer.wrap(coded));
+    }
+
+    public static CompressedImage read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel, path);
+        }
+    }
+
+    /** Reads a container starting at the channel's current position. */
+    public static CompressedImage read(FileChannel channel, Path path) throws IOException {
+        Header header = Header.read(channel, path);
+        byte[] codeBook = readCodeBook(channel, header);
+        ByteBuffer coded = ByteBuffer.allocate(Math.toIntExact(header.indexLength));
+        readFully(channel, coded);
+        int[] indices = header.coding == Coding.RANGE
+                ? RangeIndexCoder.decode(coded.array(), header.blockCount, header.keyLength,
+                        blocksPerRow(header.width, header.blockSize))
+                : unpack(coded.array(), header.blockCount, header.keyLength);
+        return new CompressedImage(header.width, header.height, header.blockSize, header.keyLength, codeBook,
+                indices, header.coding);
+    }
+
+    /** Reads only the codebook of a compressed image, as centroids ordered by index. */
+    public static double[][] readCentroids(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = Header.read(channel, path);
+            return toCentroids(readCodeBook(channel, header), header.blockSize * header.blockSize);
+        }
+    }
+
+    public static double[][] toCentroids(byte[] codeBook, int dim) {
+        double[][] centroids = new double[dim == 0 ? 0 : codeBook.length / dim][dim];
+        for (int c = 0; c < centroids.length; c++) {
+            for (int i = 0; i < dim; i++) {
+                centroids[c][i] = codeBook[c * dim + i] & 0xFF;
+            }
+        }
+        return centroids;
+    }
+
+    static byte[] readCodeBook(FileChannel channel, Header header) throws IOException {
+        ByteBuffer codeBook = ByteBuffer.allocate(header.codeBookSize * header.blockSize * header.blockSize);
+        readFully(channel, codeBook);
+        return codeBook.array();
+    }
+
+    static int blocksPerRow(int width, int blockSize) {
+        return blockSize <= 0 ? 0 : width / blockSize;
+    }
+
+    static long packedLength(int count, int bits) {
+        return ((long) count * bits + 7) / 8;
+    }
+
+    static byte[] pack(int[] values, int bits) {
+        byte[] out = new byte[(int) packedLength(values.length, bits)];
+        long buffer = 0;
+        int buffered = 0;
+        int pos = 0;
+        for (int value : values) {
+            buffer = (buffer << bits) | (value & ((1L << bits) - 1));
+            buffered += bits;
+            while (buffered >= 8) {
+                buffered -= 8;
+                out[pos++] = (byte) (buffer >>> buffered);
+            }
+        }
+        if (buffered > 0) {
+            out[pos] = (byte) (buffer << (8 - buffered));
+        }
+        return out;
+    }
+
+    static int[] unpack(byte[] packed, int count, int bits) {
+        int[] values = new int[count];
+        long mask = (1L << bits) - 1;
+        long buffer = 0;
+        int buffered = 0;
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            while (buffered < bits) {
+                buffer = (buffer << 8) | (packed[pos++] & 0xFF);
+                buffered += 8;
+            }
+            buffered -= bits;
+            values[i] = (int) ((buffer >>> buffered) & mask);
+        }
+        return values;
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    /** Fixed-size header at the start of every container. */
+    static final class Header {
+        final int width;
+        final int height;
+        final int blockSize;
+        final int codeBookSize;
+        final int keyLength;
+        final int blockCount;
+        final Coding coding;
+        final long indexLength;
+
+        Header(int width, int height, int blockSize, int codeBookSize, int keyLength, int blockCount) {
+            this(width, height, blockSize, codeBookSize, keyLength, blockCount, Coding.PACKED,
+                    packedLength(blockCount, keyLength));
+        }
+
+        Header(int width, int height, int blockSize, int codeBookSize, int keyLength, int blockCount,
+               Coding coding, long indexLength) {
+            this.width = width;
+            this.height = height;
+            this.blockSize = blockSize;
+            this.codeBookSize = codeBookSize;
+            this.keyLength = keyLength;
+            this.blockCount = blockCount;
+            this.coding = coding;
+            this.indexLength = indexLength;
+        }
+
+        void write(FileChannel channel) throws IOException {
+            checkCoding(coding, keyLength);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC)
+                    .put(VERSION)
+                    .putInt(width)
+                    .putInt(height)
+                    .putInt(blockSize)
+                    .putInt(codeBookSize)
+                    .put((byte) keyLength)
+                    .putInt(blockCount)
+                    .put((byte) coding.ordinal())
+                    .putLong(indexLength)
+                    .flip();
+            writeFully(channel, header);
+        }
+
+        /**
+         * Overwrites the index length of a header written at {@code headerStart}, for
+         * writers that only learn it once the indices have been streamed out.
+         */
+        static void writeIndexLength(FileChannel channel, long headerStart, long indexLength) throws IOException {
+            ByteBuffer length = ByteBuffer.allocate(8).putLong(indexLength);
+            length.flip();
+            long position = headerStart + HEADER_SIZE - 8;
+            while (length.hasRemaining()) {
+                position += channel.write(length, position);
+            }
+        }
+
+        /**
+         * Rejects headers whose fields cannot describe a real image, before any of
+         * them is used to size an array or a mapping.
+         */
+        /** Rejects index widths that {@code coding} cannot write. */
+        static void checkCoding(Coding coding, int keyLength) throws IOException {
+            if (coding == Coding.RANGE && keyLength > RangeIndexCoder.MAX_BITS) {
+                throw new IOException("Range coding supports indices of at most " + RangeIndexCoder.MAX_BITS
+                        + " bits, not " + keyLength + "; use packed indices");
+            }
+        }
+
+        private void validate(Path path) throws IOException {
+            if (width <= 0 || height <= 0 || blockSize <= 0) {
+                throw new IOException("Invalid image size " + width + "x" + height + " with block size " + blockSize
+                        + ": " + path);
+            }
+            if (codeBookSize < 0 || blockCount < 0 || indexLength < 0) {
+                throw new IOException("Negative codebook size, block count or index length: " + path);
+            }
+            if (keyLength < 0 || keyLength > 31) {
+                throw new IOException("Index width " + keyLength + " is outside 0-31 bits: " + path);
+            }
+            if (coding == Coding.RANGE && keyLength > RangeIndexCoder.MAX_BITS) {
+                throw new IOException("Range-coded index width " + keyLength + " exceeds " + RangeIndexCoder.MAX_BITS
+                        + " bits: " + path);
+            }
+            if (codeBookSize > 1L << keyLength) {
+                throw new IOException("Codebook of " + codeBookSize + " codewords does not fit " + keyLength
+                        + "-bit indices: " + path);
+            }
+            if (blockCount != (long) blocksPerRow(width, blockSize) * (height / blockSize)) {
+                throw new IOException("Block count " + blockCount + " does not match a " + width + "x" + height
+                        + " image of " + blockSize + "x" + blockSize + " blocks: " + path);
+            }
+            if (coding == Coding.PACKED && indexLength != packedLength(blockCount, keyLength)) {
+                throw new IOException("Index length " + indexLength + " does not match " + blockCount + " packed "
+                        + keyLength + "-bit indices: " + path);
+            }
+        }
+
+        static Header read(FileChannel channel, Path path) throws IOException {
+            long start = channel.position();
+            if (channel.size() - start < HEADER_SIZE_V1) {
+                throw new IOException("Not a compressed image: " + path);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE_V1);
+            readFully(channel, buffer);
+            buffer.flip();
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a compressed image: " + path);
+            }
+            byte version = buffer.get();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported compressed image version " + version + ": " + path);
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int blockSize = buffer.getInt();
+            int codeBookSize = buffer.getInt();
+            int keyLength = buffer.get();
+            int blockCount = buffer.getInt();
+            Header header;
+            if (version == 1) {
+                header = new Header(width, height, blockSize, codeBookSize, keyLength, blockCount);
+            } else {
+                ByteBuffer coding = ByteBuffer.allocate(HEADER_SIZE - HEADER_SIZE_V1);
+                readFully(channel, coding);
+                coding.flip();
+                int ordinal = coding.get();
+                if (ordinal < 0 || ordinal >= Coding.values().length) {
+                    throw new IOException("Unknown index coding " + ordinal + ": " + path);
+                }
+                header = new Header(width, height, blockSize, codeBookSize, keyLength, blockCount,
+                        Coding.values()[ordinal], coding.getLong());
+            }
+            header.validate(path);
+            long expected = channel.position() - start
+                    + (long) header.codeBookSize * header.blockSize * header.blockSize + header.indexLength;
+            if (channel.size() - start < expected) {
+                throw new IOException("Truncated compressed image: " + path);
+            }
+            return header;
+        }
+    }
+
+    /** Appends indices to a channel in the given coding. */
+    abstract static class IndexWriter {
+
+        static IndexWriter open(WritableByteChannel channel, Header header) {
+            return header.coding == Coding.RANGE
+                    ? new RangeIndexCoder.Encoder(channel, header.keyLength, blocksPerRow(header.width, header.blockSize))
+                    : new PackedWriter(channel, header.keyLength);
+        }
+
+        abstract void write(int value) throws IOException;
+
+        /** Flushes the remaining bits and returns the number of bytes written. */
+        abstract long finish() throws IOException;
+    }
+
+    /** Reads indices from a channel in the coding named by the header. */
+    abstract static class IndexReader {
+
+        static IndexReader open(ReadableByteChannel channel, Header header) throws IOException {
+            return header.coding == Coding.RANGE
+                    ? new RangeIndexCoder.Decoder(channel, header.indexLength, header.keyLength,
+                            blocksPerRow(header.width, header.blockSize))
+                    : new PackedReader(channel, header.keyLength);
+        }
+
+        abstract int read() throws IOException;
+    }
+
+    /** Appends bit-packed indices to a channel through a fixed-size buffer. */
+    static final class PackedWriter extends IndexWriter {
+        private final WritableByteChannel channel;
+        private final int bits;
+        private final ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        private long buffer;
+        private int buffered;
+        private long written;
+
+        PackedWriter(WritableByteChannel channel, int bits) {
+            this.channel = channel;
+            this.bits = bits;
+        }
+
+        @Override
+        void write(int value) throws IOException {
+            buffer = (buffer << bits) | (value & ((1L << bits) - 1));
+            buffered += bits;
+            while (buffered >= 8) {
+                buffered -= 8;
+                if (!out.hasRemaining()) {
+                    drain();
+                }
+                out.put((byte) (buffer >>> buffered));
+            }
+        }
+
+        @Override
+        long finish() throws IOException {
+            if (buffered > 0) {
+                if (!out.hasRemaining()) {
+                    drain();
+                }
+                out.put((byte) (buffer << (8 - buffered)));
+                buffered = 0;
+            }
+            drain();
+            return written;
+        }
+
+        private void drain() throws IOException {
+            out.flip();
+            written += out.remaining();
+            writeFully(channel, out);
+            out.clear();
+        }
+    }
+
+    /** Reads bit-packed indices from a channel through a fixed-size buffer. */
+    static final class PackedReader extends IndexReader {
+        private final ReadableByteChannel channel;
+        private final int bits;
+        private final long mask;
+        private final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        private long buffer;
+        private int buffered;
+
+        PackedReader(ReadableByteChannel channel, int bits) {
+            this.channel = channel;
+            this.bits = bits;
+            this.mask = (1L << bits) - 1;
+            in.flip();
+        }
+
+        @Override
+        int read() throws IOException {
+            while (buffered < bits) {
+                if (!in.hasRemaining()) {
+                    in.clear();
+                    if (channel.read(in) < 0) {
+                        throw new IOException("Unexpected end of file");
+                    }
+                    in.flip();
+                    continue;
+                }
+                buffer = (buffer << 8) | (in.get() & 0xFF);
+                buffered += 8;
+            }
+            buffered -= bits;
+            return (int) ((buffer >>> buffered) & mask);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+
+/**
+ * Direct view of the pixel bytes behind a {@code TYPE_BYTE_GRAY} image.
+ *
+ * The pipeline works on gray levels as {@code getRGB} reports them, while a gray
+ * raster stores samples in the linear gray color space. The two tables below
+ * translate between them with exactly the results {@code getRGB} and
+ * {@code setRGB} would give, so callers can read and write the raster in bulk
+ * without changing any pixel value.
+ */
+public class GrayRaster {
+
+    /** Sample to store in a new {@code TYPE_BYTE_GRAY} image for each gray level, as {@code setRGB} would. */
+    public static final byte[] GRAY_TO_SAMPLE = grayToSample();
+
+    private static final ColorModel STANDARD_GRAY = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY).getColorModel();
+    private static final byte[] STANDARD_SAMPLE_TO_GRAY = buildSampleToGray(STANDARD_GRAY);
+
+    private final byte[] data;
+    private final int origin;
+    private final int stride;
+    private final byte[] sampleToGray;
+
+    private GrayRaster(byte[] data, int origin, int stride, byte[] sampleToGray) {
+        this.data = data;
+        this.origin = origin;
+        this.stride = stride;
+        this.sampleToGray = sampleToGray;
+    }
+
+    /** Returns a direct view of {@code image}, or null if its pixels are not one interleaved byte each. */
+    public static GrayRaster of(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            return null;
+        }
+        Raster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+                || !(raster.getSampleModel() instanceof ComponentSampleModel)) {
+            return null;
+        }
+        ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+        if (model.getPixelStride() != 1 || model.getNumBands() != 1) {
+            return null;
+        }
+        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        int origin = buffer.getOffset() + model.getBandOffsets()[0]
+                - raster.getSampleModelTranslateY() * model.getScanlineStride()
+                - raster.getSampleModelTranslateX();
+        return new GrayRaster(buffer.getData(), origin, model.getScanlineStride(), sampleToGray(image.getColorModel()));
+    }
+
+    /**
+     * Returns {@code image} if it is already gray, otherwise a converted copy made
+     * once with {@link App#convertToGrayscale}.
+     */
+    public static BufferedImage toGray(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_BYTE_GRAY ? image : App.convertToGrayscale(image);
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    /** Index in {@link #data()} of pixel (x, y); the rest of the row follows contiguously. */
+    public int index(int x, int y) {
+        return origin + y * stride + x;
+    }
+
+    /** Gray level {@code getRGB} reports for each sample value. */
+    public byte[] sampleToGray() {
+        return sampleToGray;
+    }
+
+    private static byte[] sampleToGray(ColorModel colorModel) {
+        return colorModel.equals(STANDARD_GRAY) ? STANDARD_SAMPLE_TO_GRAY : buildSampleToGray(colorModel);
+    }
+
+    private static byte[] buildSampleToGray(ColorModel colorModel) {
+        byte[] table = new byte[256];
+        for (int s = 0; s < 256; s++) {
+            table[s] = (byte) colorModel.getRGB(s);
+        }
+        return table;
+    }
+
+    private static byte[] grayToSample() {
+        BufferedImage pixel = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] table = new byte[256];
+        for (int v = 0; v < 256; v++) {
+            pixel.setRGB(0, 0, (v << 16) | (v << 8) | v);
+            table[v] = (byte) pixel.getRaster().getSample(0, 0, 0);
+        }
+        return table;
+    }
+}
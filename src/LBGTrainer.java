@@ -0,0 +1,532 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+
+/**
+ * Parallel LBG/K-Means training engine behind {@link App#Create_Code_Book}.
+ *
+ * The block set is split into ranges that are processed on a fork-join pool. Each
+ * range accumulates per-centroid sums and counts into primitive arrays, and the
+ * partial results are merged once per split level or refinement iteration, so no
+ * per-block lists are built. Sums are kept as exact integers, which makes the
+ * resulting codebook identical to the sequential algorithm for the same seed.
+ */
+public class LBGTrainer {
+
+    private static final int MIN_RANGE = 1024;
+
+    private final ForkJoinPool pool;
+    private final CodewordSearch.Factory searchFactory;
+    private final PipelineListener listener;
+
+    public LBGTrainer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public LBGTrainer(ForkJoinPool pool) {
+        this(pool, CodewordSearch.DEFAULT);
+    }
+
+    public LBGTrainer(ForkJoinPool pool, CodewordSearch.Factory searchFactory) {
+        this(pool, searchFactory, PipelineListener.NONE);
+    }
+
+    /** Reports sampling, every split level and every refinement pass to {@code listener}. */
+    public LBGTrainer(ForkJoinPool pool, CodewordSearch.Factory searchFactory, PipelineListener listener) {
+        this.pool = pool;
+        this.searchFactory = searchFactory;
+        this.listener = listener;
+    }
+
+    public double[][] train(List<int[]> blocks, int codeBookSize, Random random) {
+        return train(BlockMatrix.fromList(blocks), codeBookSize, random);
+    }
+
+    public double[][] train(BlockMatrix data, int codeBookSize, Random random) {
+        return train(data, codeBookSize, random, TrainingOptions.full(), false).getCentroids();
+    }
+
+    /**
+     * Trains on the sample selected by {@code options} and refines with full passes
+     * or mini-batches until the configured stopping rule fires.
+     */
+    public TrainingResult train(BlockMatrix data, int codeBookSize, Random random, TrainingOptions options) {
+        return train(data, codeBookSize, random, options, true);
+    }
+
+    /** With {@code measure} false, callers that only want the centroids skip the final distortion pass. */
+    private TrainingResult train(BlockMatrix data, int codeBookSize, Random random, TrainingOptions options,
+                                 boolean measure) {
+        PipelineListener.Timer total = PipelineListener.Timer.start(listener);
+        if (data == null || data.isEmpty()) {
+            return new TrainingResult(new double[0][], 0, 0, 0, 0);
+        }
+        PipelineListener.Timer timer = PipelineListener.Timer.start(listener);
+        BlockMatrix sample = sample(data, options, random);
+        listener.stage(PipelineListener.Stage.SAMPLE, timer.nanos(), data.size(), timer.bytes());
+        double[][] centroids = new double[][]{mean(sample)};
+        for (int level = 0; centroids.length < codeBookSize; level++) {
+            timer = PipelineListener.Timer.start(listener);
+            centroids = splitLevel(sample, centroids);
+            listener.splitLevel(level, centroids.length, timer.nanos());
+        }
+        int iterations = options.getMiniBatchSize() > 0
+                ? refineMiniBatch(sample, centroids, random, options)
+                : refine(sample, centroids, random, options);
+        TrainingResult result = new TrainingResult(centroids, sample.size(), iterations,
+                measure ? distortion(sample, centroids) : Double.NaN, total.nanos() / 1_000_000);
+        listener.stage(PipelineListener.Stage.TRAIN, total.nanos(), sample.size(), total.bytes());
+        return result;
+    }
+
+    /**
+     * Classic LBG with every level kept: each split is refined before the next one,
+     * and entry {@code l} of the result is the codebook of {@code 2^l} codewords.
+     * One run therefore yields every power-of-two size up to {@code codeBookSize},
+     * for rate-distortion searches such as {@link RateDistortionTuner}. Each entry's
+     * training time is the time taken to reach that level.
+     */
+    public List<TrainingResult> trainLevels(BlockMatrix data, int codeBookSize, Random random, TrainingOptions options) {
+        PipelineListener.Timer total = PipelineListener.Timer.start(listener);
+        List<TrainingResult> levels = new ArrayList<>();
+        if (data == null || data.isEmpty()) {
+            return levels;
+        }
+        PipelineListener.Timer timer = PipelineListener.Timer.start(listener);
+        BlockMatrix sample = sample(data, options, random);
+        listener.stage(PipelineListener.Stage.SAMPLE, timer.nanos(), data.size(), timer.bytes());
+        double[][] centroids = new double[][]{mean(sample)};
+        levels.add(new TrainingResult(copy(centroids), sample.size(), 0, distortion(sample, centroids),
+                total.nanos() / 1_000_000));
+        for (int level = 0; centroids.length < codeBookSize; level++) {
+            timer = PipelineListener.Timer.start(listener);
+            centroids = splitLevel(sample, centroids);
+            int iterations = options.getMiniBatchSize() > 0
+                    ? refineMiniBatch(sample, centroids, random, options)
+                    : refine(sample, centroids, random, options);
+            listener.splitLevel(level, centroids.length, timer.nanos());
+            levels.add(new TrainingResult(copy(centroids), sample.size(), iterations, distortion(sample, centroids),
+                    total.nanos() / 1_000_000));
+        }
+        listener.stage(PipelineListener.Stage.TRAIN, total.nanos(), sample.size(), total.bytes());
+        return levels;
+    }
+
+    /**
+     * Warm start: skips splitting and refines a copy of {@code initial} on the sample
+     * selected by {@code options}, with full passes or mini-batches as in
+     * {@link #train}. Useful when the data has moved only a little since
+     * {@code initial} was trained.
+     */
+    public TrainingResult warmStart(BlockMatrix data, double[][] initial, Random random, TrainingOptions options) {
+        PipelineListener.Timer total = PipelineListener.Timer.start(listener);
+        if (data == null || data.isEmpty() || initial.length == 0) {
+            return new TrainingResult(new double[0][], 0, 0, 0, 0);
+        }
+        if (initial[0].length != data.dim()) {
+            throw new IllegalArgumentException("Codebook has " + initial[0].length + " pixels per codeword, blocks have "
+                    + data.dim());
+        }
+        PipelineListener.Timer timer = PipelineListener.Timer.start(listener);
+        BlockMatrix sample = sample(data, options, random);
+        listener.stage(PipelineListener.Stage.SAMPLE, timer.nanos(), data.size(), timer.bytes());
+        double[][] centroids = copy(initial);
+        int iterations = options.getMiniBatchSize() > 0
+                ? refineMiniBatch(sample, centroids, random, options)
+                : refine(sample, centroids, random, options);
+        TrainingResult result = new TrainingResult(centroids, sample.size(), iterations, distortion(sample, centroids),
+                total.nanos() / 1_000_000);
+        listener.stage(PipelineListener.Stage.TRAIN, total.nanos(), sample.size(), total.bytes());
+        return result;
+    }
+
+    /**
+     * Trains a tree-structured codebook. Every node is split into a +/- pair as in
+     * {@link #train}, but each pair is then refined with 2-means on the blocks that
+     * reach its parent only, and the hierarchy is kept instead of being flattened.
+     * {@code options} selects the training sample and caps the 2-means iterations
+     * per level.
+     */
+    public TreeCodeBook trainTree(BlockMatrix data, int codeBookSize, Random random, TrainingOptions options) {
+        int depth = codeBookSize <= 1 ? 0 : App.keyLength(codeBookSize);
+        int dim = data == null ? 0 : data.dim();
+        double[][] nodes = new double[2 << depth][];
+        if (data == null || data.isEmpty()) {
+            for (int n = 1; n < nodes.length; n++) {
+                nodes[n] = new double[dim];
+            }
+            return new TreeCodeBook(depth, dim, nodes);
+        }
+        PipelineListener.Timer total = PipelineListener.Timer.start(listener);
+        BlockMatrix sample = sample(data, options, random);
+        listener.stage(PipelineListener.Stage.SAMPLE, total.nanos(), data.size(), total.bytes());
+        int[] path = new int[sample.size()];
+        Arrays.fill(path, 1);
+        nodes[1] = mean(sample);
+        for (int level = 0; level < depth; level++) {
+            PipelineListener.Timer timer = PipelineListener.Timer.start(listener);
+            int first = 1 << level;
+            double[][] children = new double[2 * first][];
+            for (int j = 0; j < first; j++) {
+                double[][] split = App.splitVector(nodes[first + j]);
+                children[2 * j] = split[0];
+                children[2 * j + 1] = split[1];
+            }
+            int iterations = 0;
+            boolean changed;
+            do {
+                changed = false;
+                iterations++;
+                double[][] current = children.clone();
+                Accumulator acc = pool.invoke(new AccumulateTask(sample, 0, sample.size(), threshold(sample.size()),
+                        (block, a) -> a.add(nearerChild(sample, block, current, path[block] - first), sample, block),
+                        children.length, dim));
+                for (int k = 0; k < children.length; k++) {
+                    double[] newvector = acc.average(k, children[k]);
+                    if (!Arrays.equals(children[k], newvector)) {
+                        children[k] = newvector;
+                        changed = true;
+                    }
+                }
+            } while (changed && (options.getMaxIterations() == 0 || iterations < options.getMaxIterations()));
+            pool.invoke(new ForEachTask(0, sample.size(), threshold(sample.size()),
+                    block -> path[block] = 2 * first + nearerChild(sample, block, children, path[block] - first)));
+            System.arraycopy(children, 0, nodes, 2 * first, children.length);
+            listener.splitLevel(level, children.length, timer.nanos());
+        }
+        listener.stage(PipelineListener.Stage.TRAIN, total.nanos(), sample.size(), total.bytes());
+        return new TreeCodeBook(depth, dim, nodes);
+    }
+
+    /** Child of {@code parent} closer to {@code block}, as an index into {@code children}; ties go to the minus half. */
+    private static int nearerChild(BlockMatrix data, int block, double[][] children, int parent) {
+        double distToPlus = squaredDistance(data, block, children[2 * parent]);
+        double distToMinus = squaredDistance(data, block, children[2 * parent + 1]);
+        return distToPlus < distToMinus ? 2 * parent : 2 * parent + 1;
+    }
+
+    /** Mean squared error per pixel when every block is replaced by its nearest centroid. */
+    public double distortion(BlockMatrix data, double[][] centroids) {
+        if (data.isEmpty() || centroids.length == 0) {
+            return 0;
+        }
+        CodewordSearch search = searchFactory.build(centroids);
+        Accumulator acc = pool.invoke(new AccumulateTask(data, 0, data.size(), threshold(data.size()),
+                (block, a) -> a.distortion += squaredDistance(data, block, centroids[search.nearest(data, block)]),
+                0, data.dim()));
+        return acc.distortion / ((double) data.size() * data.dim());
+    }
+
+    static BlockMatrix sample(BlockMatrix data, TrainingOptions options, Random random) {
+        int n = data.size();
+        int size = options.getSampleSize();
+        if (size == 0 || size >= n) {
+            return data;
+        }
+        int dim = data.dim();
+        BlockMatrix sample = new BlockMatrix(size, dim);
+        int selected = 0;
+        if (options.getSampling() == TrainingOptions.Sampling.STRATIFIED) {
+            for (int k = 0; k < size; k++) {
+                long from = (long) k * n / size;
+                long to = (long) (k + 1) * n / size;
+                int block = (int) (from + random.nextInt((int) (to - from)));
+                System.arraycopy(data.data(), data.offset(block), sample.data(), sample.offset(k), dim);
+            }
+        } else {
+            // Selection sampling (Knuth's Algorithm S): one pass, keeps scan order.
+            for (int block = 0; block < n && selected < size; block++) {
+                if (random.nextDouble() * (n - block) < size - selected) {
+                    System.arraycopy(data.data(), data.offset(block), sample.data(), sample.offset(selected++), dim);
+                }
+            }
+        }
+        return sample;
+    }
+
+    private static double[][] copy(double[][] centroids) {
+        double[][] copy = new double[centroids.length][];
+        for (int i = 0; i < centroids.length; i++) {
+            copy[i] = centroids[i].clone();
+        }
+        return copy;
+    }
+
+    private double[] mean(BlockMatrix data) {
+        int dim = data.dim();
+        Accumulator acc = pool.invoke(new AccumulateTask(data, 0, data.size(), threshold(data.size()),
+                (block, a) -> a.add(0, data, block), 1, dim));
+        return acc.average(0, null);
+    }
+
+    /**
+     * Splits every centroid into a +/- pair and moves each pair to the mean of the
+     * blocks closer to its plus or minus half. As in the original algorithm, every
+     * pair is evaluated against the whole block set.
+     */
+    private double[][] splitLevel(BlockMatrix data, double[][] centroids) {
+        int dim = data.dim();
+        int pairs = centroids.length;
+        double[][] halves = new double[pairs * 2][];
+        for (int j = 0; j < pairs; j++) {
+            double[][] split = App.splitVector(centroids[j]);
+            halves[2 * j] = split[0];
+            halves[2 * j + 1] = split[1];
+        }
+        Accumulator acc = pool.invoke(new AccumulateTask(data, 0, data.size(), threshold(data.size()),
+                (block, a) -> {
+                    for (int j = 0; j < pairs; j++) {
+                        double distToPlus = App.Compute_Distance(data, block, halves[2 * j]);
+                        double distToMinus = App.Compute_Distance(data, block, halves[2 * j + 1]);
+                        a.add(distToPlus < distToMinus ? 2 * j : 2 * j + 1, data, block);
+                    }
+                }, halves.length, dim));
+        double[][] next = new double[halves.length][];
+        for (int k = 0; k < halves.length; k++) {
+            next[k] = acc.average(k, halves[k]);
+        }
+        return next;
+    }
+
+    private int refine(BlockMatrix data, double[][] centroids, Random random, TrainingOptions options) {
+        int dim = data.dim();
+        int iterations = 0;
+        double previousDistortion = Double.NaN;
+        // Per-pass distortion only feeds the listener and the early stop; plain K-Means does not pay for it.
+        boolean measure = listener != PipelineListener.NONE || options.getMinRelativeImprovement() > 0;
+        boolean changed;
+        do {
+            PipelineListener.Timer timer = PipelineListener.Timer.start(listener);
+            changed = false;
+            iterations++;
+            double[][] current = centroids.clone();
+            CodewordSearch search = searchFactory.build(current);
+            Accumulator acc = pool.invoke(new AccumulateTask(data, 0, data.size(), threshold(data.size()),
+                    (block, a) -> {
+                        int nearest = search.nearest(data, block);
+                        a.add(nearest, data, block);
+                        if (measure) {
+                            a.distortion += squaredDistance(data, block, current[nearest]);
+                        }
+                    }, centroids.length, dim));
+            double[][] reseeded = new double[centroids.length][];
+            int reseeds = 0;
+            for (int i = 0; i < centroids.length; i++) {
+                if (acc.counts[i] == 0) {
+                    reseeds++;
+                    int block = random.nextInt(data.size());
+                    double[] vector = new double[dim];
+                    for (int d = 0; d < dim; d++) {
+                        vector[d] = data.get(block, d);
+                    }
+                    reseeded[i] = vector;
+                    changed = true;
+                }
+            }
+            for (int i = 0; i < centroids.length; i++) {
+                double[] newvector = reseeded[i] != null ? reseeded[i] : acc.average(i, null);
+                if (!Arrays.equals(centroids[i], newvector)) {
+                    centroids[i] = newvector;
+                    changed = true;
+                }
+            }
+            listener.iteration(iterations, acc.distortion / ((double) data.size() * dim), reseeds, timer.nanos());
+            if (options.getMinRelativeImprovement() > 0 && previousDistortion > 0
+                    && (previousDistortion - acc.distortion) / previousDistortion < options.getMinRelativeImprovement()) {
+                break;
+            }
+            previousDistortion = acc.distortion;
+        } while (changed && (options.getMaxIterations() == 0 || iterations < options.getMaxIterations()));
+        return iterations;
+    }
+
+    /**
+     * Mini-batch K-Means: each step assigns a random batch of blocks and moves every
+     * winning centroid towards its blocks with a 1/count learning rate. Distortion is
+     * compared per epoch (one sample's worth of blocks); without an explicit threshold
+     * or cap, refinement stops once an epoch no longer improves.
+     */
+    private int refineMiniBatch(BlockMatrix data, double[][] centroids, Random random, TrainingOptions options) {
+        int dim = data.dim();
+        int batchSize = Math.min(options.getMiniBatchSize(), data.size());
+        long[] counts = new long[centroids.length];
+        int[] batch = new int[batchSize];
+        int[] assigned = new int[batchSize];
+        double epochDistortion = 0;
+        int epochBlocks = 0;
+        double previousEpoch = Double.NaN;
+        int iterations = 0;
+        int epochs = 0;
+        PipelineListener.Timer epochTimer = PipelineListener.Timer.start(listener);
+        while (options.getMaxIterations() == 0 || iterations < options.getMaxIterations()) {
+            iterations++;
+            CodewordSearch search = searchFactory.build(centroids);
+            for (int j = 0; j < batchSize; j++) {
+                batch[j] = random.nextInt(data.size());
+                assigned[j] = search.nearest(data, batch[j]);
+                epochDistortion += squaredDistance(data, batch[j], centroids[assigned[j]]);
+            }
+            for (int j = 0; j < batchSize; j++) {
+                double[] centroid = centroids[assigned[j]];
+                double rate = 1.0 / ++counts[assigned[j]];
+                for (int d = 0; d < dim; d++) {
+                    centroid[d] += rate * (data.get(batch[j], d) - centroid[d]);
+                }
+            }
+            epochBlocks += batchSize;
+            if (epochBlocks >= data.size()) {
+                double current = epochDistortion / epochBlocks;
+                listener.iteration(++epochs, current / dim, 0, epochTimer.nanos());
+                epochTimer = PipelineListener.Timer.start(listener);
+                if (previousEpoch > 0) {
+                    double improvement = (previousEpoch - current) / previousEpoch;
+                    if (improvement <= options.getMinRelativeImprovement()) {
+                        break;
+                    }
+                }
+                previousEpoch = current;
+                epochDistortion = 0;
+                epochBlocks = 0;
+            }
+        }
+        return iterations;
+    }
+
+    static double squaredDistance(BlockMatrix data, int block, double[] vector) {
+        byte[] pixels = data.data();
+        int offset = data.offset(block);
+        double distance = 0;
+        for (int i = 0; i < vector.length; i++) {
+            double diff = (pixels[offset + i] & 0xFF) - vector[i];
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    private int threshold(int blockCount) {
+        return Math.max(MIN_RANGE, blockCount / (pool.getParallelism() * 4));
+    }
+
+    private interface BlockVisitor {
+        void visit(int block, Accumulator acc);
+    }
+
+    private static final class Accumulator {
+        final long[] sums;
+        final int[] counts;
+        final int dim;
+        double distortion;
+
+        Accumulator(int cells, int dim) {
+            this.sums = new long[cells * dim];
+            this.counts = new int[cells];
+            this.dim = dim;
+        }
+
+        void add(int cell, BlockMatrix data, int block) {
+            byte[] pixels = data.data();
+            int src = data.offset(block);
+            int offset = cell * dim;
+            for (int d = 0; d < dim; d++) {
+                sums[offset + d] += pixels[src + d] & 0xFF;
+            }
+            counts[cell]++;
+        }
+
+        Accumulator merge(Accumulator other) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other.sums[i];
+            }
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            distortion += other.distortion;
+            return this;
+        }
+
+        double[] average(int cell, double[] fallback) {
+            if (counts[cell] == 0) {
+                return fallback;
+            }
+            double[] avg = new double[dim];
+            int offset = cell * dim;
+            for (int d = 0; d < dim; d++) {
+                avg[d] = (double) sums[offset + d] / counts[cell];
+            }
+            return avg;
+        }
+    }
+
+    private static final class AccumulateTask extends RecursiveTask<Accumulator> {
+        private static final long serialVersionUID = 1L;
+
+        private final BlockMatrix data;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final BlockVisitor visitor;
+        private final int cells;
+        private final int dim;
+
+        AccumulateTask(BlockMatrix data, int from, int to, int threshold, BlockVisitor visitor, int cells, int dim) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.visitor = visitor;
+            this.cells = cells;
+            this.dim = dim;
+        }
+
+        @Override
+        protected Accumulator compute() {
+            if (to - from <= threshold) {
+                Accumulator acc = new Accumulator(cells, dim);
+                for (int i = from; i < to; i++) {
+                    visitor.visit(i, acc);
+                }
+                return acc;
+            }
+            int mid = (from + to) >>> 1;
+            AccumulateTask left = new AccumulateTask(data, from, mid, threshold, visitor, cells, dim);
+            AccumulateTask right = new AccumulateTask(data, mid, to, threshold, visitor, cells, dim);
+            left.fork();
+            Accumulator rightAcc = right.compute();
+            return left.join().merge(rightAcc);
+        }
+    }
+
+    /** Runs an action on every block index in parallel, for per-block updates that need no merging. */
+    private static final class ForEachTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final IntConsumer action;
+
+        ForEachTask(int from, int to, int threshold, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                for (int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ForEachTask(from, mid, threshold, action), new ForEachTask(mid, to, threshold, action));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Scans every codeword in order using squared distances, abandoning a codeword as
+ * soon as its partial sum reaches the best distance found so far.
+ */
+public class LinearCodewordSearch implements CodewordSearch {
+
+    private final double[][] codewords;
+
+    public LinearCodewordSearch(double[][] codewords) {
+        this.codewords = codewords;
+    }
+
+    @Override
+    public int nearest(BlockMatrix blocks, int block) {
+        byte[] data = blocks.data();
+        int offset = blocks.offset(block);
+        int bestIndex = -1;
+        double bestSq = Double.MAX_VALUE;
+        double bestDist = Double.MAX_VALUE;
+        for (int c = 0; c < codewords.length; c++) {
+            double[] codeword = codewords[c];
+            double distance = 0;
+            int i = 0;
+            for (; i < codeword.length; i++) {
+                double diff = (data[offset + i] & 0xFF) - codeword[i];
+                distance += diff * diff;
+                if (distance >= bestSq) {
+                    break;
+                }
+            }
+            if (i == codeword.length) {
+                // sqrt can map two different sums to the same value; compare on it so
+                // ties resolve exactly as they do with Compute_Distance.
+                double dist = Math.sqrt(distance);
+                if (dist < bestDist) {
+                    bestSq = distance;
+                    bestDist = dist;
+                    bestIndex = c;
+                }
+            }
+        }
+        return bestIndex;
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Codewords sorted by Euclidean norm. Since | |x| - |c| | is a lower bound on
+ * |x - c|, the search starts at the codewords whose norm is closest to the
+ * block's and walks outwards, stopping once the norm gap alone exceeds the best
+ * distance found. Distances use partial-distance elimination.
+ */
+public class NormOrderedCodewordSearch implements CodewordSearch {
+
+    /** Relative slack on every bound so rounding never prunes a codeword that could tie. */
+    private static final double SLACK = 1e-9;
+
+    private final double[][] codewords;
+    private final double[] norms;
+    private final int[] ranks;
+
+    public NormOrderedCodewordSearch(double[][] codewords) {
+        int n = codewords.length;
+        Integer[] order = new Integer[n];
+        double[] allNorms = new double[n];
+        for (int c = 0; c < n; c++) {
+            order[c] = c;
+            allNorms[c] = norm(codewords[c]);
+        }
+        Arrays.sort(order, Comparator.comparingDouble(c -> allNorms[c]));
+        this.codewords = new double[n][];
+        this.norms = new double[n];
+        this.ranks = new int[n];
+        for (int i = 0; i < n; i++) {
+            this.codewords[i] = codewords[order[i]];
+            this.norms[i] = allNorms[order[i]];
+            this.ranks[i] = order[i];
+        }
+    }
+
+    @Override
+    public int nearest(BlockMatrix blocks, int block) {
+        byte[] data = blocks.data();
+        int offset = blocks.offset(block);
+        int dim = blocks.dim();
+        double normSq = 0;
+        for (int i = 0; i < dim; i++) {
+            int pixel = data[offset + i] & 0xFF;
+            normSq += pixel * pixel;
+        }
+        double blockNorm = Math.sqrt(normSq);
+
+        int hi = Arrays.binarySearch(norms, blockNorm);
+        if (hi < 0) {
+            hi = -hi - 1;
+        }
+        int lo = hi - 1;
+        int bestRank = -1;
+        double bestDist = Double.MAX_VALUE;
+        double limit = Double.MAX_VALUE;
+        while (lo >= 0 || hi < norms.length) {
+            double gapLo = lo >= 0 ? blockNorm - norms[lo] : Double.MAX_VALUE;
+            double gapHi = hi < norms.length ? norms[hi] - blockNorm : Double.MAX_VALUE;
+            int c;
+            if (gapLo <= gapHi) {
+                if (gapLo > bestDist * (1 + SLACK) + SLACK) {
+                    break;
+                }
+                c = lo--;
+            } else {
+                if (gapHi > bestDist * (1 + SLACK) + SLACK) {
+                    break;
+                }
+                c = hi++;
+            }
+            double[] codeword = codewords[c];
+            double distance = 0;
+            int i = 0;
+            for (; i < codeword.length; i++) {
+                double diff = (data[offset + i] & 0xFF) - codeword[i];
+                distance += diff * diff;
+                if (distance > limit) {
+                    break;
+                }
+            }
+            if (i == codeword.length) {
+                double dist = Math.sqrt(distance);
+                if (dist < bestDist || (dist == bestDist && ranks[c] < bestRank)) {
+                    bestDist = dist;
+                    bestRank = ranks[c];
+                    limit = distance * (1 + SLACK);
+                }
+            }
+        }
+        return bestRank;
+    }
+
+    private static double norm(double[] vector) {
+        double sum = 0;
+        for (double v : vector) {
+            sum += v * v;
+        }
+        return Math.sqrt(sum);
+    }
+}
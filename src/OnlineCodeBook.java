@@ -0,0 +1,183 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Codebook that keeps adapting to a slowly drifting stream of blocks.
+ *
+ * Each call to {@link #update} assigns a batch of blocks to the current centroids
+ * and then moves every winning centroid towards its blocks. By default the step
+ * is 1/count, where the count starts at {@link #setPriorCount prior count}, so
+ * the initial codebook is treated as that many blocks of evidence. A fixed
+ * {@link #setLearningRate learning rate} forgets old data at a constant rate
+ * instead.
+ *
+ * Batches are measured against the centroids before they move, and the per-pixel
+ * distortion is smoothed into a moving average. Once that average exceeds the
+ * baseline by more than the {@link #setDriftThreshold drift threshold},
+ * {@link #isDrifted()} turns true and the listener's {@code drift} event fires
+ * once, which is the cue for a full retrain.
+ */
+public class OnlineCodeBook {
+
+    private final double[][] centroids;
+    private final long[] counts;
+    private final int dim;
+    private final PipelineListener listener;
+    private long priorCount;
+    private double learningRate;
+    private double driftThreshold = 0.25;
+    private double smoothing = 0.1;
+    private double baseline = Double.NaN;
+    private double distortion = Double.NaN;
+    private long blocksSeen;
+    private boolean drifted;
+
+    public OnlineCodeBook(double[][] initial) {
+        this(initial, PipelineListener.NONE);
+    }
+
+    public OnlineCodeBook(double[][] initial, PipelineListener listener) {
+        if (initial.length == 0) {
+            throw new IllegalArgumentException("Codebook is empty");
+        }
+        this.dim = initial[0].length;
+        this.centroids = new double[initial.length][];
+        for (int i = 0; i < initial.length; i++) {
+            centroids[i] = initial[i].clone();
+        }
+        this.counts = new long[initial.length];
+        this.listener = listener;
+        setPriorCount(100);
+    }
+
+    /** Warm-starts from a codebook loaded with {@link App#loadCodeBook} or {@link App#loadCentroids}. */
+    public static OnlineCodeBook fromCodeBook(HashMap<String, double[]> codeBook) {
+        return new OnlineCodeBook(App.toCentroids(codeBook));
+    }
+
+    /** Blocks of evidence each initial centroid counts for with count-weighted updates. */
+    public synchronized OnlineCodeBook setPriorCount(long priorCount) {
+        this.priorCount = Math.max(1, priorCount);
+        Arrays.fill(counts, this.priorCount);
+        return this;
+    }
+
+    /** Fixed step size in (0, 1]; 0 switches back to count-weighted updates. */
+    public synchronized OnlineCodeBook setLearningRate(double learningRate) {
+        if (learningRate < 0 || learningRate > 1) {
+            throw new IllegalArgumentException("Learning rate must be between 0 and 1");
+        }
+        this.learningRate = learningRate;
+        return this;
+    }
+
+    /** Relative increase of smoothed distortion over the baseline that counts as drift. */
+    public synchronized OnlineCodeBook setDriftThreshold(double driftThreshold) {
+        this.driftThreshold = driftThreshold;
+        return this;
+    }
+
+    /** Weight of the newest batch in the distortion moving average, in (0, 1]. */
+    public synchronized OnlineCodeBook setSmoothing(double smoothing) {
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("Smoothing must be in (0, 1]");
+        }
+        this.smoothing = smoothing;
+        return this;
+    }
+
+    /**
+     * Distortion per pixel the codebook is expected to achieve, for example
+     * {@link TrainingResult#getDistortion()} of the run that produced it. Without
+     * one, the first batch sets the baseline.
+     */
+    public synchronized OnlineCodeBook setBaseline(double baseline) {
+        this.baseline = baseline;
+        this.drifted = false;
+        return this;
+    }
+
+    /**
+     * Encodes a batch against the current centroids, then adapts them to it.
+     *
+     * @return the batch's distortion per pixel before adaptation
+     */
+    public synchronized double update(BlockMatrix blocks) {
+        if (blocks.isEmpty()) {
+            return 0;
+        }
+        if (blocks.dim() != dim) {
+            throw new IllegalArgumentException("Codebook has " + dim + " pixels per codeword, blocks have " + blocks.dim());
+        }
+        CodewordSearch search = CodewordSearch.DEFAULT.build(centroids);
+        int[] assigned = new int[blocks.size()];
+        double batchDistortion = 0;
+        for (int block = 0; block < assigned.length; block++) {
+            assigned[block] = search.nearest(blocks, block);
+            batchDistortion += LBGTrainer.squaredDistance(blocks, block, centroids[assigned[block]]);
+        }
+        for (int block = 0; block < assigned.length; block++) {
+            int c = assigned[block];
+            double[] centroid = centroids[c];
+            counts[c]++;
+            double rate = learningRate > 0 ? learningRate : 1.0 / counts[c];
+            for (int d = 0; d < dim; d++) {
+                centroid[d] += rate * (blocks.get(block, d) - centroid[d]);
+            }
+        }
+        blocksSeen += assigned.length;
+
+        double perPixel = batchDistortion / ((double) assigned.length * dim);
+        distortion = Double.isNaN(distortion) ? perPixel : distortion + smoothing * (perPixel - distortion);
+        if (Double.isNaN(baseline)) {
+            baseline = perPixel;
+        }
+        boolean nowDrifted = distortion > baseline * (1 + driftThreshold);
+        if (nowDrifted && !drifted) {
+            listener.drift(distortion, baseline);
+        }
+        drifted = nowDrifted;
+        return perPixel;
+    }
+
+    /** Whether the smoothed distortion currently exceeds the drift threshold. */
+    public synchronized boolean isDrifted() {
+        return drifted;
+    }
+
+    public synchronized double getDistortion() {
+        return distortion;
+    }
+
+    public synchronized double getBaseline() {
+        return baseline;
+    }
+
+    public synchronized long getBlocksSeen() {
+        return blocksSeen;
+    }
+
+    /** Copy of the current centroids, ordered by index. */
+    public synchronized double[][] getCentroids() {
+        double[][] copy = new double[centroids.length][];
+        for (int i = 0; i < centroids.length; i++) {
+            copy[i] = centroids[i].clone();
+        }
+        return copy;
+    }
+
+    /** Replaces the centroids after a full retrain and starts drift tracking afresh. */
+    public synchronized void reset(double[][] retrained, double baseline) {
+        if (retrained.length != centroids.length || retrained[0].length != dim) {
+            throw new IllegalArgumentException("Retrained codebook must have " + centroids.length + " codewords of "
+                    + dim + " pixels");
+        }
+        for (int i = 0; i < centroids.length; i++) {
+            centroids[i] = retrained[i].clone();
+        }
+        Arrays.fill(counts, priorCount);
+        this.baseline = baseline;
+        this.distortion = Double.NaN;
+        this.drifted = false;
+    }
+}
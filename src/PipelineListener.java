@@ -0,0 +1,106 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Receives timing and convergence events from training, encoding and I/O.
+ *
+ * Every method has an empty default, so listeners override only what they need.
+ * Events can arrive from several threads at once, for example from
+ * {@link BatchCompressor} workers. {@link PipelineMetrics} is the standard
+ * collector.
+ */
+public interface PipelineListener {
+
+    enum Stage {
+        READ,
+        EXTRACT,
+        SAMPLE,
+        TRAIN,
+        ENCODE,
+        WRITE,
+        DECODE
+    }
+
+    PipelineListener NONE = new PipelineListener() {
+    };
+
+    /**
+     * A stage finished.
+     *
+     * @param blocks blocks processed by the stage
+     * @param bytes  bytes allocated on all threads while it ran, or -1 if the JVM cannot tell
+     */
+    default void stage(Stage stage, long nanos, long blocks, long bytes) {
+    }
+
+    /** An LBG split level doubled the codebook to {@code codewords} entries. */
+    default void splitLevel(int level, int codewords, long nanos) {
+    }
+
+    /**
+     * A K-Means refinement pass (or mini-batch epoch) finished.
+     *
+     * @param distortion mean squared error per pixel of the assignment made in this pass
+     * @param reseeds    empty cells moved to a random block
+     */
+    default void iteration(int iteration, double distortion, int reseeds, long nanos) {
+    }
+
+    /**
+     * An {@link OnlineCodeBook}'s smoothed distortion per pixel rose past its drift
+     * threshold over {@code baseline}; fired once per crossing.
+     */
+    default void drift(double distortion, double baseline) {
+    }
+
+    /**
+     * Wall time and allocation since {@link #start}. Allocation is summed over all
+     * threads, so stages that overlap with other work also count that work's garbage.
+     * Probing allocation walks every live thread, so it is skipped for {@link #NONE}.
+     */
+    final class Timer {
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        private final long startNanos;
+        private final long startBytes;
+
+        private Timer(boolean trackAllocation) {
+            this.startNanos = System.nanoTime();
+            this.startBytes = trackAllocation ? allocatedBytes() : -1;
+        }
+
+        /** Starts timing a stage reported to {@code listener}. */
+        public static Timer start(PipelineListener listener) {
+            return new Timer(listener != NONE);
+        }
+
+        public long nanos() {
+            return System.nanoTime() - startNanos;
+        }
+
+        public long bytes() {
+            if (startBytes < 0) {
+                return -1;
+            }
+            return Math.max(0, allocatedBytes() - startBytes);
+        }
+
+        /** Bytes allocated so far by all live threads, or -1 without HotSpot's allocation counters. */
+        static long allocatedBytes() {
+            if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+                return -1;
+            }
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+                return -1;
+            }
+            long total = 0;
+            for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                if (bytes > 0) {
+                    total += bytes;
+                }
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Thread-safe {@link PipelineListener} that totals stage times and keeps the
+ * per-level and per-iteration history of training. The totals can be written as
+ * JSON or published over JMX.
+ */
+public class PipelineMetrics implements PipelineListener, PipelineMetricsMXBean {
+
+    public static final String DEFAULT_OBJECT_NAME = "vq:type=PipelineMetrics";
+
+    private final Map<Stage, long[]> stages = new EnumMap<>(Stage.class);
+    private final List<long[]> splitLevels = new ArrayList<>();
+    private final List<double[]> iterations = new ArrayList<>();
+    private long reseeds;
+    private long driftAlerts;
+
+    @Override
+    public synchronized void stage(Stage stage, long nanos, long blocks, long bytes) {
+        long[] totals = stages.computeIfAbsent(stage, s -> new long[]{0, 0, 0, 0});
+        totals[0]++;
+        totals[1] += nanos;
+        totals[2] += blocks;
+        totals[3] = bytes < 0 || totals[3] < 0 ? -1 : totals[3] + bytes;
+    }
+
+    @Override
+    public synchronized void splitLevel(int level, int codewords, long nanos) {
+        splitLevels.add(new long[]{level, codewords, nanos});
+    }
+
+    @Override
+    public synchronized void iteration(int iteration, double distortion, int reseeds, long nanos) {
+        iterations.add(new double[]{iteration, distortion, reseeds, nanos});
+        this.reseeds += reseeds;
+    }
+
+    @Override
+    public synchronized void drift(double distortion, double baseline) {
+        driftAlerts++;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getStageMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        stages.forEach((stage, totals) -> millis.put(name(stage), totals[1] / 1_000_000));
+        return millis;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getStageBlocks() {
+        Map<String, Long> blocks = new LinkedHashMap<>();
+        stages.forEach((stage, totals) -> blocks.put(name(stage), totals[2]));
+        return blocks;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getBlocksPerSecond() {
+        Map<String, Double> rates = new LinkedHashMap<>();
+        stages.forEach((stage, totals) -> rates.put(name(stage), rate(totals)));
+        return rates;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getAllocatedBytes() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        stages.forEach((stage, totals) -> bytes.put(name(stage), totals[3]));
+        return bytes;
+    }
+
+    @Override
+    public synchronized int getSplitLevels() {
+        return splitLevels.size();
+    }
+
+    @Override
+    public synchronized int getIterations() {
+        return iterations.size();
+    }
+
+    @Override
+    public synchronized double getLastDistortion() {
+        return iterations.isEmpty() ? Double.NaN : iterations.get(iterations.size() - 1)[1];
+    }
+
+    @Override
+    public synchronized double getLastRelativeImprovement() {
+        int n = iterations.size();
+        if (n < 2 || iterations.get(n - 2)[1] == 0) {
+            return Double.NaN;
+        }
+        double previous = iterations.get(n - 2)[1];
+        return (previous - iterations.get(n - 1)[1]) / previous;
+    }
+
+    @Override
+    public synchronized long getReseeds() {
+        return reseeds;
+    }
+
+    @Override
+    public synchronized long getDriftAlerts() {
+        return driftAlerts;
+    }
+
+    @Override
+    public synchronized void reset() {
+        stages.clear();
+        splitLevels.clear();
+        iterations.clear();
+        reseeds = 0;
+        driftAlerts = 0;
+    }
+
+    @Override
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"stages\": {");
+        String separator = "\n";
+        for (Map.Entry<Stage, long[]> entry : stages.entrySet()) {
+            long[] totals = entry.getValue();
+            json.append(separator).append("    \"").append(name(entry.getKey())).append("\": {")
+                    .append("\"count\": ").append(totals[0])
+                    .append(", \"millis\": ").append(number(totals[1] / 1e6))
+                    .append(", \"blocks\": ").append(totals[2])
+                    .append(", \"blocksPerSecond\": ").append(number(rate(totals)))
+                    .append(", \"allocatedBytes\": ").append(totals[3])
+                    .append('}');
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"splitLevels\": [");
+        separator = "\n";
+        for (long[] level : splitLevels) {
+            json.append(separator).append("    {\"level\": ").append(level[0])
+                    .append(", \"codewords\": ").append(level[1])
+                    .append(", \"millis\": ").append(number(level[2] / 1e6)).append('}');
+            separator = ",\n";
+        }
+        json.append("\n  ],\n  \"iterations\": [");
+        separator = "\n";
+        for (double[] iteration : iterations) {
+            json.append(separator).append("    {\"iteration\": ").append((long) iteration[0])
+                    .append(", \"distortion\": ").append(number(iteration[1]))
+                    .append(", \"reseeds\": ").append((long) iteration[2])
+                    .append(", \"millis\": ").append(number(iteration[3] / 1e6)).append('}');
+            separator = ",\n";
+        }
+        json.append("\n  ],\n  \"reseeds\": ").append(reseeds)
+                .append(",\n  \"driftAlerts\": ").append(driftAlerts).append("\n}\n");
+        return json.toString();
+    }
+
+    public void writeJson(Path path) throws IOException {
+        Files.write(path, toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Publishes these metrics on the platform MBean server, replacing any bean already under {@code name}. */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics as " + name, e);
+        }
+    }
+
+    private static String name(Stage stage) {
+        return stage.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static double rate(long[] totals) {
+        return totals[1] == 0 ? 0 : totals[2] * 1e9 / totals[1];
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value);
+    }
+}
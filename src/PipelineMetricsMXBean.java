@@ -0,0 +1,31 @@
+import java.util.Map;
+
+/** JMX view of {@link PipelineMetrics}; stage maps are keyed by lower-case stage name. */
+public interface PipelineMetricsMXBean {
+
+    Map<String, Long> getStageMillis();
+
+    Map<String, Long> getStageBlocks();
+
+    Map<String, Double> getBlocksPerSecond();
+
+    Map<String, Long> getAllocatedBytes();
+
+    int getSplitLevels();
+
+    int getIterations();
+
+    double getLastDistortion();
+
+    /** Relative distortion drop of the last refinement pass; small or negative values mean a stalled job. */
+    double getLastRelativeImprovement();
+
+    long getReseeds();
+
+    /** Times an {@link OnlineCodeBook} reported drift past its threshold. */
+    long getDriftAlerts();
+
+    String toJson();
+
+    void reset();
+}
@@ -0,0 +1,263 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Adaptive binary range coder for codeword indices.
+ *
+ * Each index is coded as a "same as the block to the left" flag, then, when that
+ * fails, a "same as the block above" flag, and only then the index bits. Both
+ * flags are modelled per length of the current run. Index bits are coded MSB
+ * first down a binary tree of adaptive probabilities, so the model learns the
+ * codebook's index histogram as it goes. Both directions are single pass, keep
+ * one row of indices as context and need no side information beyond the index
+ * width and the number of blocks per row.
+ */
+public class RangeIndexCoder {
+
+    /** Widest index the coder accepts; its bit model holds {@code 2^bits} probabilities. */
+    public static final int MAX_BITS = 16;
+    private static final int PROBABILITY_BITS = 11;
+    private static final int PROBABILITY_ONE = 1 << PROBABILITY_BITS;
+    private static final int ADAPT_SHIFT = 5;
+    private static final int RUN_CONTEXTS = 4;
+
+    private final short[] left = new short[RUN_CONTEXTS];
+    private final short[] up = new short[RUN_CONTEXTS];
+    private final short[] tree;
+    private final int bits;
+    private final int[] row;
+    private int column;
+    private int previous;
+    private int run;
+
+    private RangeIndexCoder(int bits, int blocksPerRow) {
+        if (bits < 0 || bits > MAX_BITS) {
+            throw new IllegalArgumentException("Range coding supports indices of 0-" + MAX_BITS + " bits, not " + bits);
+        }
+        this.bits = bits;
+        this.tree = new short[1 << bits];
+        this.row = new int[Math.max(blocksPerRow, 0)];
+        Arrays.fill(left, (short) (PROBABILITY_ONE / 2));
+        Arrays.fill(up, (short) (PROBABILITY_ONE / 2));
+        Arrays.fill(tree, (short) (PROBABILITY_ONE / 2));
+        Arrays.fill(row, -1);
+    }
+
+    /** Index of the block above the next one, or -1 on the first row. */
+    private int above() {
+        return row.length == 0 ? -1 : row[column];
+    }
+
+    private void update(int index) {
+        run = index == previous ? Math.min(run + 1, RUN_CONTEXTS - 1) : 0;
+        previous = index;
+        if (row.length > 0) {
+            row[column] = index;
+            column = column + 1 == row.length ? 0 : column + 1;
+        }
+    }
+
+    public static byte[] encode(int[] indices, int bits, int blocksPerRow) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(indices.length * bits / 16 + 16);
+        try {
+            Encoder encoder = new Encoder(Channels.newChannel(out), bits, blocksPerRow);
+            for (int index : indices) {
+                encoder.write(index);
+            }
+            encoder.finish();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static int[] decode(byte[] coded, int count, int bits, int blocksPerRow) throws IOException {
+        Decoder decoder = new Decoder(Channels.newChannel(new ByteArrayInputStream(coded)), coded.length, bits,
+                blocksPerRow);
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = decoder.read();
+        }
+        return indices;
+    }
+
+    /** Streams coded indices to a channel through a fixed-size buffer. */
+    static final class Encoder extends CompressedImage.IndexWriter {
+        private final RangeIndexCoder model;
+        private final WritableByteChannel channel;
+        private final ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        private long low;
+        private int range = -1;
+        private int cache;
+        private long cacheSize = 1;
+        private long written;
+
+        Encoder(WritableByteChannel channel, int bits, int blocksPerRow) {
+            this.model = new RangeIndexCoder(bits, blocksPerRow);
+            this.channel = channel;
+        }
+
+        @Override
+        void write(int index) throws IOException {
+            int above = model.above();
+            if (index == model.previous) {
+                encodeBit(model.left, model.run, 1);
+            } else {
+                encodeBit(model.left, model.run, 0);
+                if (above >= 0 && above != model.previous) {
+                    encodeBit(model.up, model.run, index == above ? 1 : 0);
+                }
+                if (index != above) {
+                    int node = 1;
+                    for (int i = model.bits - 1; i >= 0; i--) {
+                        int bit = (index >>> i) & 1;
+                        encodeBit(model.tree, node, bit);
+                        node = (node << 1) | bit;
+                    }
+                }
+            }
+            model.update(index);
+        }
+
+        @Override
+        long finish() throws IOException {
+            for (int i = 0; i < 5; i++) {
+                shiftLow();
+            }
+            out.flip();
+            CompressedImage.writeFully(channel, out);
+            out.clear();
+            return written;
+        }
+
+        private void encodeBit(short[] probabilities, int i, int bit) throws IOException {
+            int probability = probabilities[i];
+            int bound = (range >>> PROBABILITY_BITS) * probability;
+            if (bit == 0) {
+                range = bound;
+                probabilities[i] = (short) (probability + ((PROBABILITY_ONE - probability) >>> ADAPT_SHIFT));
+            } else {
+                low += bound & 0xFFFFFFFFL;
+                range -= bound;
+                probabilities[i] = (short) (probability - (probability >>> ADAPT_SHIFT));
+            }
+            if ((range & 0xFF000000) == 0) {
+                range <<= 8;
+                shiftLow();
+            }
+        }
+
+        /** Emits the top byte of {@code low}, holding back 0xFF bytes until a carry is resolved. */
+        private void shiftLow() throws IOException {
+            int carry = (int) (low >>> 32);
+            if (carry != 0 || low < 0xFF000000L) {
+                int pending = cache;
+                do {
+                    put((byte) (pending + carry));
+                    pending = 0xFF;
+                } while (--cacheSize != 0);
+                cache = (int) (low >>> 24) & 0xFF;
+            }
+            cacheSize++;
+            low = (low & 0x00FFFFFFL) << 8;
+        }
+
+        private void put(byte value) throws IOException {
+            if (!out.hasRemaining()) {
+                out.flip();
+                CompressedImage.writeFully(channel, out);
+                out.clear();
+            }
+            out.put(value);
+            written++;
+        }
+    }
+
+    /** Reads coded indices from at most {@code length} bytes of a channel. */
+    static final class Decoder extends CompressedImage.IndexReader {
+        private final RangeIndexCoder model;
+        private final ReadableByteChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        private long remaining;
+        private int range = -1;
+        private int code;
+
+        Decoder(ReadableByteChannel channel, long length, int bits, int blocksPerRow) throws IOException {
+            this.model = new RangeIndexCoder(bits, blocksPerRow);
+            this.channel = channel;
+            this.remaining = length;
+            in.flip();
+            for (int i = 0; i < 5; i++) {
+                code = (code << 8) | next();
+            }
+        }
+
+        @Override
+        int read() throws IOException {
+            int above = model.above();
+            int index;
+            if (decodeBit(model.left, model.run) == 1) {
+                index = model.previous;
+            } else if (above >= 0 && above != model.previous && decodeBit(model.up, model.run) == 1) {
+                index = above;
+            } else {
+                int node = 1;
+                for (int i = 0; i < model.bits; i++) {
+                    node = (node << 1) | decodeBit(model.tree, node);
+                }
+                index = node - (1 << model.bits);
+            }
+            model.update(index);
+            return index;
+        }
+
+        private int decodeBit(short[] probabilities, int i) throws IOException {
+            int probability = probabilities[i];
+            int bound = (range >>> PROBABILITY_BITS) * probability;
+            int bit;
+            if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+                range = bound;
+                probabilities[i] = (short) (probability + ((PROBABILITY_ONE - probability) >>> ADAPT_SHIFT));
+                bit = 0;
+            } else {
+                range -= bound;
+                code -= bound;
+                probabilities[i] = (short) (probability - (probability >>> ADAPT_SHIFT));
+                bit = 1;
+            }
+            if ((range & 0xFF000000) == 0) {
+                range <<= 8;
+                code = (code << 8) | next();
+            }
+            return bit;
+        }
+
+        /** Next coded byte; past the end of the stream the coder only ever needs zero padding. */
+        private int next() throws IOException {
+            if (!in.hasRemaining()) {
+                if (remaining == 0) {
+                    return 0;
+                }
+                in.clear();
+                if (remaining < in.capacity()) {
+                    in.limit((int) remaining);
+                }
+                if (channel.read(in) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                in.flip();
+                remaining -= in.remaining();
+                if (!in.hasRemaining()) {
+                    return next();
+                }
+            }
+            return in.get() & 0xFF;
+        }
+    }
+}
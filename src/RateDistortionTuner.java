@@ -0,0 +1,324 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Picks a block size and codebook size for an image from a quality or size target.
+ *
+ * Every block size in the grid gets one {@link LBGTrainer#trainLevels} run on a
+ * sample of blocks, which yields a codebook for every power of two up to the
+ * maximum codebook size. Each (block size, codebook size) candidate is then scored
+ * in parallel on a second, independent sample. The MSE estimate uses the rounded
+ * codebook that the decoder renders and counts the black edge that whole blocks
+ * leave uncovered, so it predicts {@link App#Compute_MSE}. The size is the exact
+ * {@code .vqc} size with packed indices; entropy coding only makes files smaller.
+ */
+public class RateDistortionTuner {
+
+    private static final double PEAK = 255.0 * 255.0;
+    /**
+     * Refinement per split level stops early: the search only has to rank
+     * candidates, and looser levels keep the estimates within a few percent of a
+     * fully converged codebook.
+     */
+    private static final double MIN_RELATIVE_IMPROVEMENT = 1e-2;
+    private static final int MAX_ITERATIONS = 20;
+
+    private final ForkJoinPool pool;
+    private int[] blockSizes = {2, 4, 8};
+    private int maxCodeBookSize = 256;
+    private int sampleSize = 20_000;
+    private long seed = 42;
+
+    public RateDistortionTuner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public RateDistortionTuner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public RateDistortionTuner setBlockSizes(int... blockSizes) {
+        for (int blockSize : blockSizes) {
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Block sizes must be positive");
+            }
+        }
+        this.blockSizes = blockSizes.clone();
+        return this;
+    }
+
+    /** Largest codebook to try; smaller ones are every power of two from 2 up. */
+    public RateDistortionTuner setMaxCodeBookSize(int maxCodeBookSize) {
+        if (maxCodeBookSize < 2) {
+            throw new IllegalArgumentException("Maximum codebook size must be at least 2");
+        }
+        this.maxCodeBookSize = maxCodeBookSize;
+        return this;
+    }
+
+    /** Blocks to train on and, separately, to score on; 0 uses every block for both. */
+    public RateDistortionTuner setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(0, sampleSize);
+        return this;
+    }
+
+    /** Seeds sampling and training, so the same image and settings always pick the same configuration. */
+    public RateDistortionTuner setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /** What a configuration has to achieve. */
+    public static final class Target {
+
+        public enum Kind {
+            MAX_MSE,
+            MIN_PSNR,
+            MIN_RATIO
+        }
+
+        private final Kind kind;
+        private final double value;
+
+        private Target(Kind kind, double value) {
+            if (!(value > 0)) {
+                throw new IllegalArgumentException("Target must be positive");
+            }
+            this.kind = kind;
+            this.value = value;
+        }
+
+        public static Target maxMse(double mse) {
+            return new Target(Kind.MAX_MSE, mse);
+        }
+
+        public static Target minPsnr(double psnr) {
+            return new Target(Kind.MIN_PSNR, psnr);
+        }
+
+        public static Target minRatio(double ratio) {
+            return new Target(Kind.MIN_RATIO, ratio);
+        }
+
+        /** Parses {@code mse=50}, {@code psnr=30} or {@code ratio=8}. */
+        public static Target parse(String spec) {
+            String[] parts = spec.trim().toLowerCase(Locale.ROOT).split("\\s*=\\s*");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected mse=<value>, psnr=<value> or ratio=<value>");
+            }
+            double value = Double.parseDouble(parts[1]);
+            switch (parts[0]) {
+                case "mse":
+                    return maxMse(value);
+                case "psnr":
+                    return minPsnr(value);
+                case "ratio":
+                    return minRatio(value);
+                default:
+                    throw new IllegalArgumentException("Unknown target " + parts[0]);
+            }
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public boolean isMetBy(Candidate candidate) {
+            switch (kind) {
+                case MAX_MSE:
+                    return candidate.getMse() <= value;
+                case MIN_PSNR:
+                    return candidate.getPsnr() >= value;
+                default:
+                    return candidate.getCompressionRatio() >= value;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return kind.name().substring(4).toLowerCase(Locale.ROOT) + (kind == Kind.MAX_MSE ? " <= " : " >= ") + value;
+        }
+    }
+
+    /** One point of the grid with its estimated quality and size. */
+    public static final class Candidate {
+        private final int blockSize;
+        private final int codeBookSize;
+        private final double mse;
+        private final long byteSize;
+        private final double compressionRatio;
+        private final long trainingMillis;
+        private final double[][] centroids;
+
+        Candidate(int blockSize, int codeBookSize, double mse, long byteSize, double compressionRatio,
+                  long trainingMillis, double[][] centroids) {
+            this.blockSize = blockSize;
+            this.codeBookSize = codeBookSize;
+            this.mse = mse;
+            this.byteSize = byteSize;
+            this.compressionRatio = compressionRatio;
+            this.trainingMillis = trainingMillis;
+            this.centroids = centroids;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getCodeBookSize() {
+            return codeBookSize;
+        }
+
+        /** Estimated mean squared error per pixel of the whole decoded image. */
+        public double getMse() {
+            return mse;
+        }
+
+        public double getPsnr() {
+            return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(PEAK / mse);
+        }
+
+        /** Size of the {@code .vqc} file with packed indices. */
+        public long getByteSize() {
+            return byteSize;
+        }
+
+        public double getCompressionRatio() {
+            return compressionRatio;
+        }
+
+        /** Time the shared training run took to reach this codebook size. */
+        public long getTrainingMillis() {
+            return trainingMillis;
+        }
+
+        /** The sampled codebook the estimates were made with, usable to encode the image directly. */
+        public double[][] getCentroids() {
+            return centroids;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%dx%d blocks, %d codewords: MSE %.2f, PSNR %.2f dB, %d bytes, ratio %.2f",
+                    blockSize, blockSize, codeBookSize, mse, getPsnr(), byteSize, compressionRatio);
+        }
+    }
+
+    /** Scores every block size and power-of-two codebook size, ordered by file size. */
+    public List<Candidate> evaluate(BufferedImage image) {
+        BufferedImage gray = GrayRaster.toGray(image);
+        int width = gray.getWidth();
+        int height = gray.getHeight();
+        List<CompletableFuture<Candidate>> futures = new ArrayList<>();
+        Random seeds = new Random(seed);
+        for (int blockSize : blockSizes) {
+            if (blockSize > Math.min(width, height)) {
+                continue;
+            }
+            BlockMatrix blocks = App.divideIntoBlocks(gray, blockSize);
+            // Codebooks larger than the image has blocks are never candidates, so do not train them.
+            int largest = Integer.highestOneBit(Math.min(maxCodeBookSize, blocks.size()));
+            int dim = blockSize * blockSize;
+            TrainingOptions options = TrainingOptions.sampled(sampleSize)
+                    .setMinRelativeImprovement(MIN_RELATIVE_IMPROVEMENT)
+                    .setMaxIterations(MAX_ITERATIONS);
+            BlockMatrix scoring = LBGTrainer.sample(blocks, options, new Random(seeds.nextLong()));
+            double edge = edgeError(gray, blockSize);
+            long covered = (long) CompressedImage.blocksPerRow(width, blockSize) * (height / blockSize) * dim;
+            long training = seeds.nextLong();
+            CompletableFuture<List<TrainingResult>> levels = CompletableFuture.supplyAsync(
+                    () -> new LBGTrainer(pool).trainLevels(blocks, largest, new Random(training), options), pool);
+            for (int level = 1; (1 << level) <= largest; level++) {
+                int bits = level;
+                futures.add(levels.thenApplyAsync(results -> {
+                    TrainingResult result = results.get(bits);
+                    double mse = (distortion(scoring, result.getCentroids(), dim) * covered + edge)
+                            / ((double) width * height);
+                    long bytes = CompressedImage.HEADER_SIZE + ((long) dim << bits)
+                            + CompressedImage.packedLength(blocks.size(), bits);
+                    return new Candidate(blockSize, 1 << bits, mse, bytes,
+                            (double) App.Compute_img_size(gray, 8) / bytes, result.getTrainingMillis(),
+                            result.getCentroids());
+                }, pool));
+            }
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        for (CompletableFuture<Candidate> future : futures) {
+            candidates.add(join(future));
+        }
+        candidates.sort(Comparator.comparingLong(Candidate::getByteSize).thenComparingDouble(Candidate::getMse));
+        return candidates;
+    }
+
+    /** The cheapest candidate of {@link #evaluate} that meets {@code target}, or null if none does. */
+    public Candidate tune(BufferedImage image, Target target) {
+        return select(evaluate(image), target);
+    }
+
+    /**
+     * For MSE and PSNR targets, the smallest file that is good enough. For a ratio
+     * target, the best quality among the files that are small enough.
+     */
+    public static Candidate select(List<Candidate> candidates, Target target) {
+        Comparator<Candidate> order = target.getKind() == Target.Kind.MIN_RATIO
+                ? Comparator.comparingDouble(Candidate::getMse).thenComparingLong(Candidate::getByteSize)
+                : Comparator.comparingLong(Candidate::getByteSize).thenComparingDouble(Candidate::getMse);
+        Candidate best = null;
+        for (Candidate candidate : candidates) {
+            if (target.isMetBy(candidate) && (best == null || order.compare(candidate, best) < 0)) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Per-pixel error of {@code blocks} as the decoder would render them: assigned
+     * with the trained centroids, drawn with the rounded ones.
+     */
+    private static double distortion(BlockMatrix blocks, double[][] centroids, int dim) {
+        double[][] rounded = CompressedImage.toCentroids(CompressedImage.quantizeCodeBook(centroids, dim), dim);
+        CodewordSearch search = CodewordSearch.DEFAULT.build(centroids);
+        double sum = 0;
+        for (int block = 0; block < blocks.size(); block++) {
+            sum += LBGTrainer.squaredDistance(blocks, block, rounded[search.nearest(blocks, block)]);
+        }
+        return sum / ((double) blocks.size() * dim);
+    }
+
+    /** Squared error of the right and bottom strips that no whole block covers and that decode to black. */
+    private static double edgeError(BufferedImage gray, int blockSize) {
+        int coveredWidth = gray.getWidth() / blockSize * blockSize;
+        int coveredHeight = gray.getHeight() / blockSize * blockSize;
+        double sum = 0;
+        for (int y = 0; y < gray.getHeight(); y++) {
+            for (int x = y < coveredHeight ? coveredWidth : 0; x < gray.getWidth(); x++) {
+                int pixel = gray.getRGB(x, y) & 0xFF;
+                sum += (double) pixel * pixel;
+            }
+        }
+        return sum;
+    }
+
+    private static Candidate join(CompletableFuture<Candidate> candidate) {
+        try {
+            return candidate.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Random-access view of a {@code .vqc} file for cropping large images.
+ *
+ * The index data is memory-mapped rather than read. With {@link CompressedImage.Coding#PACKED}
+ * coding, the index of block {@code b} starts at bit {@code b * keyLength}, so
+ * {@link #decodeRegion} reads only the blocks that overlap the rectangle. The
+ * cost of a crop therefore depends on its size, not on the size of the image.
+ * Range-coded files have no fixed offsets and are rejected; re-encode them
+ * without entropy coding to serve crops.
+ *
+ * Only the codebook is copied onto the heap. Instances are immutable and
+ * thread-safe, so one decoder can serve concurrent crops.
+ */
+public class RegionDecoder {
+
+    private final int width;
+    private final int height;
+    private final int blockSize;
+    private final int keyLength;
+    private final int blocksPerRow;
+    private final int blocksPerColumn;
+    /** Codebook translated to raster samples, as in {@link TiledDecoder}. */
+    private final byte[] samples;
+    private final ByteBuffer indices;
+
+    private RegionDecoder(CompressedImage.Header header, byte[] codeBook, ByteBuffer indices) {
+        this.width = header.width;
+        this.height = header.height;
+        this.blockSize = header.blockSize;
+        this.keyLength = header.keyLength;
+        this.blocksPerRow = CompressedImage.blocksPerRow(width, blockSize);
+        this.blocksPerColumn = height / blockSize;
+        this.samples = new byte[codeBook.length];
+        for (int i = 0; i < codeBook.length; i++) {
+            samples[i] = GrayRaster.GRAY_TO_SAMPLE[codeBook[i] & 0xFF];
+        }
+        this.indices = indices;
+    }
+
+    /** Reads the header and codebook of {@code path} and maps its indices. */
+    public static RegionDecoder open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            CompressedImage.Header header = CompressedImage.Header.read(channel, path);
+            if (header.coding != CompressedImage.Coding.PACKED) {
+                throw new IOException("Region decoding needs packed indices, " + path + " is "
+                        + header.coding.name().toLowerCase(Locale.ROOT) + "-coded");
+            }
+            byte[] codeBook = CompressedImage.readCodeBook(channel, header);
+            if (header.indexLength > Integer.MAX_VALUE) {
+                throw new IOException("Index data too large to map: " + path);
+            }
+            ByteBuffer indices = channel.map(FileChannel.MapMode.READ_ONLY, channel.position(), header.indexLength);
+            return new RegionDecoder(header, codeBook, indices);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /** Codeword index of the block in block column {@code bx} and block row {@code by}. */
+    public int indexAt(int bx, int by) {
+        if (bx < 0 || bx >= blocksPerRow || by < 0 || by >= blocksPerColumn) {
+            throw new IndexOutOfBoundsException("Block (" + bx + ", " + by + ") is outside the "
+                    + blocksPerRow + "x" + blocksPerColumn + " grid");
+        }
+        return index((long) by * blocksPerRow + bx);
+    }
+
+    /**
+     * Decodes the {@code w} by {@code h} rectangle at ({@code x}, {@code y}). The
+     * result matches the same crop of the full {@link TiledDecoder} output,
+     * including black edges where the image does not fill a whole block.
+     */
+    public BufferedImage decodeRegion(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x > width - w || y > height - h) {
+            throw new IllegalArgumentException("Region " + w + "x" + h + " at (" + x + ", " + y
+                    + ") is outside the " + width + "x" + height + " image");
+        }
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+        GrayRaster raster = GrayRaster.of(image);
+        byte[] pixels = raster.data();
+        int dim = blockSize * blockSize;
+        int codeBookSize = samples.length / dim;
+        int toRow = Math.min(blocksPerColumn, (y + h + blockSize - 1) / blockSize);
+        int toColumn = Math.min(blocksPerRow, (x + w + blockSize - 1) / blockSize);
+        for (int by = y / blockSize; by < toRow; by++) {
+            int top = Math.max(y, by * blockSize);
+            int bottom = Math.min(y + h, (by + 1) * blockSize);
+            for (int bx = x / blockSize; bx < toColumn; bx++) {
+                int index = index((long) by * blocksPerRow + bx);
+                if (index >= codeBookSize) {
+                    continue;
+                }
+                int left = Math.max(x, bx * blockSize);
+                int right = Math.min(x + w, (bx + 1) * blockSize);
+                for (int py = top; py < bottom; py++) {
+                    System.arraycopy(samples, index * dim + (py - by * blockSize) * blockSize + left - bx * blockSize,
+                            pixels, raster.index(left - x, py - y), right - left);
+                }
+            }
+        }
+        return image;
+    }
+
+    /** Reads the {@code keyLength}-bit index of {@code block}, MSB first as {@link CompressedImage#pack} wrote it. */
+    private int index(long block) {
+        long bit = block * keyLength;
+        int pos = (int) (bit >>> 3);
+        int needed = (int) (bit & 7) + keyLength;
+        long buffer = 0;
+        int buffered = 0;
+        while (buffered < needed) {
+            buffer = (buffer << 8) | (indices.get(pos++) & 0xFF);
+            buffered += 8;
+        }
+        return (int) ((buffer >>> (buffered - needed)) & ((1L << keyLength) - 1));
+    }
+}
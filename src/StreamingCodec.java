@@ -0,0 +1,134 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Strip-at-a-time encoder and decoder for images too large to hold in memory.
+ *
+ * The encoder reads horizontal strips of {@code blockSize} rows, encodes them
+ * against an existing codebook and appends the indices to a {@link CompressedImage}
+ * file as it goes. The decoder emits the image to a {@link StripSink} one strip at a
+ * time. Either way, peak memory is one strip plus the codebook.
+ */
+public class StreamingCodec {
+
+    /** Receives decoded rows from top to bottom. */
+    public interface StripSink {
+        void begin(int width, int height) throws IOException;
+
+        /** {@code pixels} holds {@code rows} rows of {@code width} gray pixels starting at row {@code y}. */
+        void strip(int y, byte[] pixels, int rows) throws IOException;
+
+        void end() throws IOException;
+    }
+
+    public static void encode(Path input, Path output, double[][] centroids, int blockSize) throws IOException {
+        encode(input, output, centroids, blockSize, CompressedImage.Coding.PACKED);
+    }
+
+    public static void encode(Path input, Path output, double[][] centroids, int blockSize,
+                              CompressedImage.Coding coding) throws IOException {
+        if (centroids.length == 0 || centroids[0].length != blockSize * blockSize) {
+            throw new IllegalArgumentException("Codebook does not match block size " + blockSize);
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(input.toFile())) {
+            if (in == null) {
+                throw new IOException("Cannot open image: " + input);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + input);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int blocksPerRow = width / blockSize;
+                int blocksPerColumn = height / blockSize;
+                int keyLength = App.keyLength(centroids.length);
+                CodewordSearch search = CodewordSearch.DEFAULT.build(centroids);
+
+                try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    int blockCount = blocksPerRow * blocksPerColumn;
+                    CompressedImage.Header header = new CompressedImage.Header(width, height, blockSize,
+                            centroids.length, keyLength, blockCount, coding,
+                            CompressedImage.packedLength(blockCount, keyLength));
+                    header.write(channel);
+                    CompressedImage.writeFully(channel, ByteBuffer.wrap(
+                            CompressedImage.quantizeCodeBook(centroids, blockSize * blockSize)));
+                    CompressedImage.IndexWriter indices = CompressedImage.IndexWriter.open(channel, header);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    for (int row = 0; row < blocksPerColumn; row++) {
+                        param.setSourceRegion(new Rectangle(0, row * blockSize, width, blockSize));
+                        BufferedImage strip = reader.read(0, param);
+                        BlockMatrix blocks = App.divideIntoBlocks(strip, blockSize);
+                        for (int block = 0; block < blocks.size(); block++) {
+                            indices.write(search.nearest(blocks, block));
+                        }
+                    }
+                    long indexLength = indices.finish();
+                    if (coding != CompressedImage.Coding.PACKED) {
+                        // The coded length is only known now; the header was written at position 0.
+                        CompressedImage.Header.writeIndexLength(channel, 0, indexLength);
+                    }
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public static void decode(Path input, StripSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            CompressedImage.Header header = CompressedImage.Header.read(channel, input);
+            byte[] codeBook = CompressedImage.readCodeBook(channel, header);
+            CompressedImage.IndexReader indices = CompressedImage.IndexReader.open(channel, header);
+            int width = header.width;
+            int blockSize = header.blockSize;
+            int dim = blockSize * blockSize;
+            int blocksPerRow = width / blockSize;
+            int blocksPerColumn = header.height / blockSize;
+
+            sink.begin(width, header.height);
+            byte[] strip = new byte[width * blockSize];
+            int decoded = 0;
+            for (int row = 0; row < blocksPerColumn; row++) {
+                for (int bx = 0; bx < blocksPerRow; bx++) {
+                    int index = decoded++ < header.blockCount ? indices.read() : -1;
+                    for (int dy = 0; dy < blockSize; dy++) {
+                        int dst = dy * width + bx * blockSize;
+                        if (index >= 0 && index < header.codeBookSize) {
+                            System.arraycopy(codeBook, index * dim + dy * blockSize, strip, dst, blockSize);
+                        } else {
+                            Arrays.fill(strip, dst, dst + blockSize, (byte) 0);
+                        }
+                    }
+                }
+                sink.strip(row * blockSize, strip, blockSize);
+            }
+            int remaining = header.height - blocksPerColumn * blockSize;
+            if (remaining > 0) {
+                sink.strip(blocksPerColumn * blockSize, new byte[width * remaining], remaining);
+            }
+            sink.end();
+        }
+    }
+
+    public static void decode(Path input, Path outputBmp) throws IOException {
+        try (BmpStripWriter writer = new BmpStripWriter(outputBmp)) {
+            decode(input, writer);
+        }
+    }
+}
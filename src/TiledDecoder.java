@@ -0,0 +1,107 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel decoder for {@link CompressedImage}.
+ *
+ * The codebook is converted once into a table of raster samples, so each index
+ * maps straight to a ready-made pixel block that is copied row by row into the
+ * output. Bands of block rows are disjoint and are filled in parallel on a
+ * fork-join pool. The result is identical to {@link App#reconstructImage} of
+ * {@link CompressedImage#decode()}.
+ */
+public class TiledDecoder {
+
+    /** Bands smaller than this many pixels are filled on the current thread. */
+    private static final int MIN_BAND_PIXELS = 1 << 16;
+
+    private final ForkJoinPool pool;
+
+    public TiledDecoder() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public TiledDecoder(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public BufferedImage decode(CompressedImage compressed) {
+        return decode(compressed.getIndices(), compressed.getCodeBook(), compressed.getWidth(),
+                compressed.getHeight(), compressed.getBlockSize());
+    }
+
+    /**
+     * @param codeBook quantized codebook, {@code blockSize * blockSize} gray levels per codeword
+     */
+    public BufferedImage decode(int[] indices, byte[] codeBook, int width, int height, int blockSize) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        if (blockSize <= 0) {
+            return image;
+        }
+        byte[] samples = new byte[codeBook.length];
+        for (int i = 0; i < codeBook.length; i++) {
+            samples[i] = GrayRaster.GRAY_TO_SAMPLE[codeBook[i] & 0xFF];
+        }
+        int blocksPerRow = width / blockSize;
+        int blocksPerColumn = height / blockSize;
+        int minRows = Math.max(1, MIN_BAND_PIXELS / Math.max(1, width * blockSize));
+        pool.invoke(new Band(GrayRaster.of(image), indices, samples, blockSize, blocksPerRow,
+                0, blocksPerColumn, minRows));
+        return image;
+    }
+
+    private static final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final GrayRaster raster;
+        private final int[] indices;
+        private final byte[] samples;
+        private final int blockSize;
+        private final int blocksPerRow;
+        private final int fromRow;
+        private final int toRow;
+        private final int minRows;
+
+        Band(GrayRaster raster, int[] indices, byte[] samples, int blockSize, int blocksPerRow,
+             int fromRow, int toRow, int minRows) {
+            this.raster = raster;
+            this.indices = indices;
+            this.samples = samples;
+            this.blockSize = blockSize;
+            this.blocksPerRow = blocksPerRow;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.minRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > minRows) {
+                int mid = (fromRow + toRow) >>> 1;
+                invokeAll(new Band(raster, indices, samples, blockSize, blocksPerRow, fromRow, mid, minRows),
+                        new Band(raster, indices, samples, blockSize, blocksPerRow, mid, toRow, minRows));
+                return;
+            }
+            byte[] pixels = raster.data();
+            int dim = blockSize * blockSize;
+            int codeBookSize = samples.length / dim;
+            for (int row = fromRow; row < toRow; row++) {
+                for (int bx = 0; bx < blocksPerRow; bx++) {
+                    int block = row * blocksPerRow + bx;
+                    if (block >= indices.length) {
+                        return;
+                    }
+                    int index = indices[block];
+                    if (index < 0 || index >= codeBookSize) {
+                        continue;
+                    }
+                    for (int dy = 0; dy < blockSize; dy++) {
+                        System.arraycopy(samples, index * dim + dy * blockSize, pixels,
+                                raster.index(bx * blockSize, row * blockSize + dy), blockSize);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Controls how much data {@link LBGTrainer} looks at and when refinement stops.
+ * The defaults train on every block until no centroid moves, which is the
+ * original behaviour of {@link App#Create_Code_Book}.
+ */
+public class TrainingOptions {
+
+    public enum Sampling {
+        /** Uniform sample without replacement. */
+        RANDOM,
+        /** One random block from each of {@code sampleSize} equal runs of blocks in scan order. */
+        STRATIFIED
+    }
+
+    private int sampleSize;
+    private Sampling sampling = Sampling.RANDOM;
+    private int miniBatchSize;
+    private double minRelativeImprovement;
+    private int maxIterations;
+
+    public static TrainingOptions full() {
+        return new TrainingOptions();
+    }
+
+    public static TrainingOptions sampled(int sampleSize) {
+        return new TrainingOptions().setSampleSize(sampleSize);
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /** Number of blocks to train on; 0 trains on all of them. */
+    public TrainingOptions setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(0, sampleSize);
+        return this;
+    }
+
+    public Sampling getSampling() {
+        return sampling;
+    }
+
+    public TrainingOptions setSampling(Sampling sampling) {
+        this.sampling = sampling;
+        return this;
+    }
+
+    public int getMiniBatchSize() {
+        return miniBatchSize;
+    }
+
+    /** Refines with mini-batch K-Means updates of this many blocks; 0 uses full passes. */
+    public TrainingOptions setMiniBatchSize(int miniBatchSize) {
+        this.miniBatchSize = Math.max(0, miniBatchSize);
+        return this;
+    }
+
+    public double getMinRelativeImprovement() {
+        return minRelativeImprovement;
+    }
+
+    /**
+     * Stops refining once distortion improves by less than this fraction between
+     * iterations (between epochs for mini-batch). 0 disables the check.
+     */
+    public TrainingOptions setMinRelativeImprovement(double minRelativeImprovement) {
+        this.minRelativeImprovement = Math.max(0, minRelativeImprovement);
+        return this;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    /** Caps refinement iterations (mini-batches for mini-batch mode); 0 means no cap. */
+    public TrainingOptions setMaxIterations(int maxIterations) {
+        this.maxIterations = Math.max(0, maxIterations);
+        return this;
+    }
+}
@@ -0,0 +1,40 @@
+/** Centroids produced by {@link LBGTrainer} together with how the run went. */
+public class TrainingResult {
+
+    private final double[][] centroids;
+    private final int sampleSize;
+    private final int iterations;
+    private final double distortion;
+    private final long trainingMillis;
+
+    public TrainingResult(double[][] centroids, int sampleSize, int iterations, double distortion, long trainingMillis) {
+        this.centroids = centroids;
+        this.sampleSize = sampleSize;
+        this.iterations = iterations;
+        this.distortion = distortion;
+        this.trainingMillis = trainingMillis;
+    }
+
+    public double[][] getCentroids() {
+        return centroids;
+    }
+
+    /** Number of blocks the codebook was trained on. */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /** Refinement iterations run, or mini-batches in mini-batch mode. */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /** Mean squared error per pixel over the training blocks. */
+    public double getDistortion() {
+        return distortion;
+    }
+
+    public long getTrainingMillis() {
+        return trainingMillis;
+    }
+}
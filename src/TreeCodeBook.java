@@ -0,0 +1,85 @@
+/**
+ * Tree-structured codebook kept from LBG splitting, built by {@link LBGTrainer#trainTree}.
+ *
+ * Node {@code 1} is the mean of all blocks and node {@code n} splits into
+ * {@code 2n} (the plus half of {@link App#splitVector}) and {@code 2n + 1} (the
+ * minus half). A block is encoded by descending from the root to the nearer child
+ * at every level, so encoding costs {@code 2 * depth} distances instead of one per
+ * codeword. The leaf reached at depth {@code d} has index {@code node - 2^d}, which
+ * makes the top {@code k} bits of an index the path to its ancestor at depth
+ * {@code k}; see {@link CompressedImage#atDepth}.
+ *
+ * The search is greedy, so a block may end up at a leaf that is not its nearest
+ * codeword. Instances are immutable and thread-safe.
+ */
+public class TreeCodeBook {
+
+    private final int depth;
+    private final int dim;
+    /** Node {@code n} occupies {@code nodes[n * dim .. n * dim + dim)}; slot 0 is unused. */
+    private final double[] nodes;
+
+    TreeCodeBook(int depth, int dim, double[][] nodes) {
+        this.depth = depth;
+        this.dim = dim;
+        this.nodes = new double[(2 << depth) * dim];
+        for (int n = 1; n < nodes.length; n++) {
+            System.arraycopy(nodes[n], 0, this.nodes, n * dim, dim);
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int size() {
+        return 1 << depth;
+    }
+
+    /** Codewords at {@code level} ({@code 0} is the root), ordered by index. */
+    public double[][] level(int level) {
+        if (level < 0 || level > depth) {
+            throw new IllegalArgumentException("Level must be between 0 and " + depth);
+        }
+        double[][] codewords = new double[1 << level][dim];
+        for (int i = 0; i < codewords.length; i++) {
+            System.arraycopy(nodes, ((1 << level) + i) * dim, codewords[i], 0, dim);
+        }
+        return codewords;
+    }
+
+    /** The leaf codewords, which form the flat codebook written to a compressed image. */
+    public double[][] leaves() {
+        return level(depth);
+    }
+
+    /** Index of the leaf reached by descending the tree with {@code block}. */
+    public int encode(BlockMatrix blocks, int block) {
+        byte[] pixels = blocks.data();
+        int offset = blocks.offset(block);
+        int node = 1;
+        for (int level = 0; level < depth; level++) {
+            int plus = 2 * node * dim;
+            int minus = plus + dim;
+            double distToPlus = 0;
+            double distToMinus = 0;
+            for (int i = 0; i < dim; i++) {
+                int pixel = pixels[offset + i] & 0xFF;
+                double diffPlus = pixel - nodes[plus + i];
+                double diffMinus = pixel - nodes[minus + i];
+                distToPlus += diffPlus * diffPlus;
+                distToMinus += diffMinus * diffMinus;
+            }
+            node = 2 * node + (distToPlus < distToMinus ? 0 : 1);
+        }
+        return node - (1 << depth);
+    }
+
+    public int[] encode(BlockMatrix blocks) {
+        int[] indices = new int[blocks.size()];
+        for (int block = 0; block < indices.length; block++) {
+            indices[block] = encode(blocks, block);
+        }
+        return indices;
+    }
+}